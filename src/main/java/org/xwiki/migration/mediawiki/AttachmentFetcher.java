@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.MessageFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.output.IPageWriter;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Downloads the files referenced by a page into the attachment location
+ * of the {@link IPageWriter}, instead of generating wget scripts.
+ * Runs as a pipeline stage, its threads are the number of parallel downloads.
+ *
+ * Each file name is fetched once, further pages copy the local file.
+ * An existing file is only fetched again, if the server has a newer one
+ * (If-Modified-Since). Downloads go into a .part file first, an interrupted
+ * download is continued with a Range request on the next run. The .part file
+ * carries the Last-Modified of the server as its time, the Range request
+ * sends it as If-Range: a changed file on the server comes as a whole (200)
+ * and replaces the .part file. A .part file without Last-Modified is not
+ * kept. A .part file, which is already complete (416 for the Range request),
+ * is taken as it is. Failed downloads are logged, the conversion goes on.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class AttachmentFetcher {
+
+	private static final int BUFFER_SIZE = 64 << 10;
+	private static final int CONNECT_TIMEOUT = 30000;
+	private static final int READ_TIMEOUT = 60000;
+	private static final String PART_SUFFIX = ".part";
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private final Logger logger = Logger.getLogger(this.getClass().getName());
+	private final String urltemplate;
+	private final ConcurrentHashMap<String, FutureTask<File>> fetched = new ConcurrentHashMap<String, FutureTask<File>>();
+
+	/**
+	 * @param urltemplate {0} is replaced by the original, URL encoded file name, {1} by the XWiki conform one
+	 * @param connections number of parallel downloads, idle connections are kept for reuse:
+	 *        sets the system property http.maxConnections, which holds for the whole JVM,
+	 *        unless it is set already
+	 */
+	public AttachmentFetcher(String urltemplate, int connections) {
+		this.urltemplate = urltemplate;
+		if (System.getProperty("http.maxConnections") == null) {
+			// keep-alive cache per server, default 5
+			System.setProperty("http.maxConnections", Integer.toString(Math.max(5, connections)));
+		}
+	}
+
+	/**
+	 * Downloads all files of the page.
+	 *
+	 * @param page
+	 * @param writer
+	 * @throws InterruptedException
+	 */
+	public void fetch(SimPage page, IPageWriter writer) throws InterruptedException {
+		for (String f : page.getFiles()) {
+			final String name = XWikiSerializer2.clearName(f);
+			fetch(f, name, writer.getAttachment(page, name));
+		}
+	}
+
+	private void fetch(final String original, final String name, final File target) throws InterruptedException {
+		final FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				return download(original, name, target);
+			}
+		});
+		FutureTask<File> first = fetched.putIfAbsent(name, task);
+		if (first == null) {
+			first = task;
+			task.run();
+		}
+		try {
+			final File source = first.get();
+			if (!source.equals(target) && (!target.exists() || target.length() != source.length())) {
+				target.getParentFile().mkdirs();
+				Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				new File(target.getPath() + PART_SUFFIX).delete();
+			}
+		} catch (ExecutionException e) {
+			if (first == task) {
+				logger.warning("failed to download " + original + ": " + e.getCause().getMessage());
+			}
+		} catch (IOException e) {
+			logger.warning("failed to copy " + name + " to " + target + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param original
+	 * @param name
+	 * @param target
+	 * @return the target
+	 * @throws IOException
+	 */
+	private File download(String original, String name, File target) throws IOException {
+		final URL url = new URL(MessageFormat.format(urltemplate,
+				URLEncoder.encode(original, "UTF-8").replace("+", "%20"), name));
+		final File part = new File(target.getPath() + PART_SUFFIX);
+		final HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		con.setConnectTimeout(CONNECT_TIMEOUT);
+		con.setReadTimeout(READ_TIMEOUT);
+		if (part.exists() && part.length() > 0) {
+			con.setRequestProperty("Range", "bytes=" + part.length() + "-");
+			// only the same file continues, a changed one comes as a whole
+			con.setRequestProperty("If-Range", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+					ZonedDateTime.ofInstant(Instant.ofEpochMilli(part.lastModified()), ZoneOffset.UTC)));
+		} else if (target.exists() && target.length() > 0) {
+			con.setIfModifiedSince(target.lastModified());
+		}
+		final int status = con.getResponseCode();
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			drain(con.getInputStream());
+			logger.fine("not modified " + url);
+			return target;
+		}
+		if (status == HTTP_RANGE_NOT_SATISFIABLE && part.exists()) {
+			drain(con.getErrorStream());
+			if (part.length() == totalLength(con.getHeaderField("Content-Range"))
+					&& part.lastModified() == con.getLastModified()) {
+				// completely downloaded by an earlier run, which stopped before the move
+				logger.fine("already complete " + url);
+				return complete(part, target, con.getLastModified());
+			}
+			// doesn't fit to the file on the server, start again
+			part.delete();
+			return download(original, name, target);
+		}
+		if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+			drain(con.getErrorStream());
+			throw new IOException(status + " " + con.getResponseMessage() + " for " + url);
+		}
+		final boolean resume = status == HttpURLConnection.HTTP_PARTIAL;
+		if (resume && startOf(con.getHeaderField("Content-Range")) != part.length()) {
+			// not the missing rest, start again
+			drain(con.getInputStream());
+			part.delete();
+			return download(original, name, target);
+		}
+		logger.fine((resume ? "continuing " : "downloading ") + url);
+		target.getParentFile().mkdirs();
+		final long lastmodified = con.getLastModified();
+		final InputStream in = con.getInputStream();
+		// a whole file (200) replaces the .part file
+		final OutputStream out = new FileOutputStream(part, resume);
+		boolean done = false;
+		try {
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read = -1;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			done = true;
+		} finally {
+			out.close();
+			// a completely read and closed stream returns the connection for reuse
+			in.close();
+			if (!done) {
+				if (lastmodified > 0) {
+					// for the If-Range of the next run
+					part.setLastModified(lastmodified);
+				} else {
+					// can't be continued safely
+					part.delete();
+				}
+			}
+		}
+		return complete(part, target, lastmodified);
+	}
+
+	private static File complete(File part, File target, long lastmodified) throws IOException {
+		Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		if (lastmodified > 0) {
+			target.setLastModified(lastmodified);
+		}
+		return target;
+	}
+
+	/**
+	 * @param contentrange sample: bytes 100-1233/1234
+	 * @return the first byte sent or -1, if unknown
+	 */
+	static long startOf(String contentrange) {
+		if (contentrange == null || !contentrange.startsWith("bytes ")) {
+			return -1;
+		}
+		final int dash = contentrange.indexOf('-');
+		try {
+			return dash < 0 ? -1 : Long.parseLong(contentrange.substring("bytes ".length(), dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @param contentrange sample: bytes *&#47;1234
+	 * @return the length of the whole file or -1, if unknown
+	 */
+	static long totalLength(String contentrange) {
+		if (contentrange == null) {
+			return -1;
+		}
+		final int slash = contentrange.lastIndexOf('/');
+		try {
+			return slash < 0 ? -1 : Long.parseLong(contentrange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			// "*"
+			return -1;
+		}
+	}
+
+	private static void drain(InputStream in) throws IOException {
+		if (in == null) {
+			return;
+		}
+		try {
+			final byte[] buffer = new byte[4096];
+			while (in.read(buffer) > 0) {
+				// skip
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
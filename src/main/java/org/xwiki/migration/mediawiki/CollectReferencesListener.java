@@ -17,6 +17,7 @@ package org.xwiki.migration.mediawiki;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import org.wikimodel.wem.EmptyWemListener;
 import org.wikimodel.wem.WikiReference;
@@ -35,19 +36,22 @@ public class CollectReferencesListener extends EmptyWemListener {
     
     public static final String PREFIX_CATEGORY  = "^(?:c|C)ategory:.*";
     
+	private static final Pattern[] FILE_PATTERNS = { Pattern.compile(PREFIX_IMAGE), Pattern.compile(PREFIX_FILE),
+			Pattern.compile(PREFIX_MEDIA), Pattern.compile(PREFIX_DATEI) };
+	private static final Pattern CATEGORY_PATTERN = Pattern.compile(PREFIX_CATEGORY);
+
 	private List<String> files = new ArrayList<String>();
 	private List<String> categories = new ArrayList<String>();
 	
 	@Override
 	public void onReference(String ref) {
-		if (ref.matches(PREFIX_IMAGE) || ref.matches(PREFIX_FILE)
-				|| ref.matches(PREFIX_MEDIA) || ref.matches(PREFIX_DATEI)) {
+		if (isFile(ref)) {
 			final String target = ref.substring(ref.indexOf(':')+1);
 			if (target.trim().length() > 0) {
 				files.add(target);
 			}
 		}
-		if (ref.matches(PREFIX_CATEGORY)) {
+		if (CATEGORY_PATTERN.matcher(ref).matches()) {
 			final String target = ref.substring(ref.indexOf(':')+1);
 			if (target.trim().length() > 0) {
 				categories.add(target);
@@ -55,6 +59,15 @@ public class CollectReferencesListener extends EmptyWemListener {
 		}
 	}
 
+	private static boolean isFile(String ref) {
+		for (Pattern p : FILE_PATTERNS) {
+			if (p.matcher(ref).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	@Override
 	public void onReference(WikiReference ref) {
 		onReference(ref.getLink());
@@ -83,4 +96,12 @@ public class CollectReferencesListener extends EmptyWemListener {
 	public String[] getCategories() {
 		return categories.toArray(new String[categories.size()]);
 	}
+
+	/**
+	 * Forgets all references, to reuse the listener for the next page.
+	 */
+	public void reset() {
+		files.clear();
+		categories.clear();
+	}
 }
@@ -20,6 +20,8 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.xwiki.migration.mediawiki.xmldump.INameSpaceResolver;
 import org.xwiki.migration.mediawiki.xmldump.IPostTransformFilter;
@@ -34,9 +36,22 @@ public class Config {
 
 	private static final String CFG_LOG_LEVEL = "logging.level";
 	private final static String CFG_SOURCE_DUMP = "source.dump.file";
+	private final static String CFG_SOURCE_DUMP_MODE = "source.dump.mode";
+	private final static String CFG_SOURCE_DUMP_INDEX = "source.dump.index";
+	private final static String CFG_SOURCE_DUMP_THREADS = "source.dump.threads";
+	private final static String CFG_SOURCE_DUMP_SHARDS = "source.dump.shards";
+	private final static String CFG_PIPELINE_THREADS = "pipeline.threads.";
+	private final static String CFG_PIPELINE_QUEUE_SIZE = "pipeline.queue.size";
 	private static final String CFG_DOWNLOAD_URL = "source.download.url";
+	private static final String CFG_FETCH_URL = "source.fetch.url";
+	private static final String CFG_FETCH_THREADS = "source.fetch.threads";
 	private static final String CFG_TARGET_PATH = "target.path";
+	private static final String CFG_TARGET_FORMAT = "target.format";
+	private static final String CFG_TARGET_PACK_SEGMENT = "target.pack.segment.size";
+	private static final String CFG_TARGET_INCREMENTAL = "target.incremental";
 	private static final String CFG_XWIKI_DEFSPACE = "xwiki.namespace.default";
+	private static final String CFG_XWIKI_URL = "xwiki.url";
+	private static final String CFG_XWIKI_REST_URL = "xwiki.rest.url";
 	private static final String CFG_XWIKI_USER = "xwiki.user";
 	private static final String CFG_XWIKI_PASS = "xwiki.pass";
 	private static final String CFG_XWIKI_COMMENT = "xwiki.comment.create";
@@ -45,6 +60,20 @@ public class Config {
 	private static final String CFG_FILTERS_PRE = "filters.pre.transform";
 	private static final String CFG_FILTERS_POST = "filters.post.transform";
 	private static final String CFG_XWIKI_NS_RESOLVERS = "resolvers.namespace";
+	private static final String CFG_UPLOAD_THREADS = "upload.threads";
+	private static final String CFG_UPLOAD_INFLIGHT = "upload.inflight";
+	private static final String CFG_UPLOAD_MIN_THREADS = "upload.threads.min";
+	private static final String CFG_UPLOAD_LATENCY = "upload.latency.target";
+	private static final String CFG_UPLOAD_RETRIES = "upload.retries";
+	private static final String CFG_UPLOAD_RETRY_DELAY = "upload.retry.delay";
+	private static final String CFG_UPLOAD_STREAM_SIZE = "upload.attachment.stream.size";
+	private static final String CFG_UPLOAD_DEDUP = "upload.attachment.dedup";
+	private static final String CFG_UPLOAD_BATCH = "upload.batch.pages";
+	private static final String CFG_UPLOAD_DELTA = "upload.delta";
+	private static final String CFG_UPLOAD_DIRECT = "upload.direct";
+	private static final String CFG_UPLOAD_DIRECT_AUDIT = "upload.direct.audit";
+	private static final String CFG_UPLOAD_TRANSPORT = "upload.transport";
+	private static final String CFG_UPLOAD_TRANSPORT_LATENCY = "upload.transport.latency";
 
 	private final Properties props = new Properties();
 	
@@ -54,14 +83,34 @@ public class Config {
 		loadSettings();
 	}
 
+	/**
+	 * @param overrides settings, which replace the ones of the properties file
+	 */
+	public Config(Properties overrides) {
+		loadSettings();
+		props.putAll(overrides);
+	}
+
 	private void loadSettings() {
 		// fallback first ....
 		props.put(CFG_LOG_LEVEL, "fine");
 		props.put(CFG_SOURCE_DUMP, "sample-data/PortoWiki-20100730160513.xml");
+		props.put(CFG_SOURCE_DUMP_MODE, "stream");
+		props.put(CFG_SOURCE_DUMP_INDEX, "");
+		props.put(CFG_SOURCE_DUMP_THREADS, "0");
+		props.put(CFG_SOURCE_DUMP_SHARDS, "0");
+		props.put(CFG_PIPELINE_QUEUE_SIZE, "256");
 		props.put(CFG_TARGET_PATH, "wiki-pages");
+		props.put(CFG_TARGET_FORMAT, "folder");
+		props.put(CFG_TARGET_PACK_SEGMENT, "256");
+		props.put(CFG_TARGET_INCREMENTAL, "true");
+		props.put(CFG_XWIKI_URL, "http://119.29.101.119:10007/xwiki/xmlrpc/confluence");
+		props.put(CFG_XWIKI_REST_URL, "");
 		props.put(CFG_XWIKI_USER, "Admin");
 		props.put(CFG_XWIKI_PASS, "admin");
 		props.put(CFG_XWIKI_DEFSPACE, "Sandbox");
+		props.put(CFG_FETCH_URL, "");
+		props.put(CFG_FETCH_THREADS, "0");
 		props.put(CFG_DOWNLOAD_URL,
 				"wget \"http://subdev.portolancs.intra/portowiki/images/{0}\" -O \"{1}\"");
 		props.put(CFG_XWIKI_COMMENT, "true");
@@ -70,6 +119,20 @@ public class Config {
 		props.put(CFG_FILTERS_PRE, "");
 		props.put(CFG_FILTERS_POST, "");
 		props.put(CFG_XWIKI_NS_RESOLVERS, "");
+		props.put(CFG_UPLOAD_THREADS, "4");
+		props.put(CFG_UPLOAD_INFLIGHT, "0");
+		props.put(CFG_UPLOAD_MIN_THREADS, "1");
+		props.put(CFG_UPLOAD_LATENCY, "2000");
+		props.put(CFG_UPLOAD_RETRIES, "3");
+		props.put(CFG_UPLOAD_RETRY_DELAY, "1000");
+		props.put(CFG_UPLOAD_STREAM_SIZE, "16");
+		props.put(CFG_UPLOAD_DEDUP, "true");
+		props.put(CFG_UPLOAD_BATCH, "0");
+		props.put(CFG_UPLOAD_DELTA, "false");
+		props.put(CFG_UPLOAD_DIRECT, "false");
+		props.put(CFG_UPLOAD_DIRECT_AUDIT, "false");
+		props.put(CFG_UPLOAD_TRANSPORT, "xmlrpc");
+		props.put(CFG_UPLOAD_TRANSPORT_LATENCY, "0");
 
 		try {
 			FileInputStream fis = new FileInputStream(CONF_FILE);
@@ -88,10 +151,110 @@ public class Config {
 		return props.getProperty(CFG_SOURCE_DUMP).trim();
 	}
 
+	/**
+	 * @return 'dom' to load the whole dump into memory,
+	 * 'stream' to process the pages one by one,
+	 * 'parallel' to process the pages of an uncompressed dump on all cores
+	 */
+	public String getSourceDumpMode() {
+		return props.getProperty(CFG_SOURCE_DUMP_MODE).trim().toLowerCase();
+	}
+
+	public String getSourceDumpIndex() {
+		return props.getProperty(CFG_SOURCE_DUMP_INDEX).trim();
+	}
+
+	/**
+	 * @return number of threads to decompress the dump, defaults to the number of processors
+	 */
+	public int getSourceDumpThreads() {
+		final int threads = Integer.parseInt(props.getProperty(CFG_SOURCE_DUMP_THREADS).trim());
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return number of byte ranges to split the dump into in 'parallel' mode,
+	 * defaults to four per processor
+	 */
+	public int getSourceDumpShards() {
+		final int shards = Integer.parseInt(props.getProperty(CFG_SOURCE_DUMP_SHARDS).trim());
+		return shards > 0 ? shards : Runtime.getRuntime().availableProcessors() * 4;
+	}
+
+	/**
+	 * @param stage name of the pipeline stage: filter, transform, postfilter or write
+	 * @return number of threads for the stage, defaults to the number of processors
+	 */
+	public int getPipelineThreads(String stage) {
+		final int threads = Integer.parseInt(props.getProperty(CFG_PIPELINE_THREADS + stage, "0").trim());
+		return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return number of pages waiting in front of each pipeline stage
+	 */
+	public int getPipelineQueueSize() {
+		return Integer.parseInt(props.getProperty(CFG_PIPELINE_QUEUE_SIZE).trim());
+	}
+
 	public String getTargetPath() {
 		return props.getProperty(CFG_TARGET_PATH).trim();
 	}
 
+	/**
+	 * @return 'folder' for one folder per page, 'pack' for a few segment files,
+	 * 'xar' for an XWiki archive
+	 */
+	public String getTargetFormat() {
+		return props.getProperty(CFG_TARGET_FORMAT).trim().toLowerCase();
+	}
+
+	/**
+	 * @return maximum size of a pack segment in bytes
+	 */
+	public long getTargetPackSegmentSize() {
+		return Long.parseLong(props.getProperty(CFG_TARGET_PACK_SEGMENT).trim()) << 20;
+	}
+
+	/**
+	 * @return true, if unchanged pages are skipped (target.format = folder only)
+	 */
+	public boolean isTargetIncremental() {
+		return Boolean.parseBoolean(props.getProperty(CFG_TARGET_INCREMENTAL).trim());
+	}
+
+	/**
+	 * @return all settings, which change the converted pages
+	 */
+	public String getConversionSignature() {
+		final StringBuilder sb = new StringBuilder();
+		for (String key : new String[] { CFG_FILTERS_PRE, CFG_FILTERS_POST, CFG_XWIKI_NS_RESOLVERS,
+				CFG_XWIKI_DEFSPACE, CFG_DOWNLOAD_URL }) {
+			sb.append(key).append('=').append(props.getProperty(key).trim()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the XML-RPC end point of the XWiki instance
+	 */
+	public String getXWikiUrl() {
+		return props.getProperty(CFG_XWIKI_URL).trim();
+	}
+
+	/**
+	 * @return the REST API base URL, derived from the XML-RPC end point, if not set
+	 */
+	public String getXWikiRestUrl() {
+		final String resturl = props.getProperty(CFG_XWIKI_REST_URL).trim();
+		if (resturl.length() > 0) {
+			return resturl;
+		}
+		final String url = getXWikiUrl();
+		final int idx = url.indexOf("/xmlrpc");
+		return (idx > 0 ? url.substring(0, idx) : url) + "/rest";
+	}
+
 	public String getXWikiUser() {
 		return props.getProperty(CFG_XWIKI_USER).trim();
 	}
@@ -108,6 +271,26 @@ public class Config {
 		return props.getProperty(CFG_DOWNLOAD_URL).trim();
 	}
 
+	/**
+	 * @return the URL of a file, {0} original name, {1} XWiki conform name,
+	 * taken from the wget command of source.download.url, if not set
+	 */
+	public String getSourceFetchURL() {
+		final String url = props.getProperty(CFG_FETCH_URL).trim();
+		if (url.length() > 0) {
+			return url;
+		}
+		final Matcher m = Pattern.compile("https?://[^\"\\s]+").matcher(getSourceDownloadURL());
+		return m.find() ? m.group() : "";
+	}
+
+	/**
+	 * @return number of parallel downloads while converting, 0 to write wget commands only
+	 */
+	public int getSourceFetchThreads() {
+		return Integer.parseInt(props.getProperty(CFG_FETCH_THREADS).trim());
+	}
+
 	public boolean isCreateXwikiComment() {
 		return Boolean
 				.parseBoolean(props.getProperty(CFG_XWIKI_COMMENT).trim());
@@ -122,6 +305,105 @@ public class Config {
 				.trim());
 	}
 
+	/**
+	 * @return maximum number of XML-RPC sessions uploading in parallel
+	 */
+	public int getUploadThreads() {
+		return Math.max(1, Integer.parseInt(props.getProperty(CFG_UPLOAD_THREADS).trim()));
+	}
+
+	/**
+	 * @return number of sessions the upload never goes below
+	 */
+	public int getUploadMinThreads() {
+		return Math.max(1, Integer.parseInt(props.getProperty(CFG_UPLOAD_MIN_THREADS).trim()));
+	}
+
+	/**
+	 * @return latency in milliseconds, above which the upload slows down, 0 for a fixed number of sessions
+	 */
+	public long getUploadLatencyTarget() {
+		return Long.parseLong(props.getProperty(CFG_UPLOAD_LATENCY).trim());
+	}
+
+	/**
+	 * @return how often a failed request is repeated, before the upload stops
+	 */
+	public int getUploadRetries() {
+		return Math.max(0, Integer.parseInt(props.getProperty(CFG_UPLOAD_RETRIES).trim()));
+	}
+
+	/**
+	 * @return wait time in milliseconds before the first retry, doubled for each further one
+	 */
+	public long getUploadRetryDelay() {
+		return Long.parseLong(props.getProperty(CFG_UPLOAD_RETRY_DELAY).trim());
+	}
+
+	/**
+	 * @return attachments larger than this (in bytes) are streamed through the REST API, 0 never
+	 */
+	public long getUploadStreamSize() {
+		return Long.parseLong(props.getProperty(CFG_UPLOAD_STREAM_SIZE).trim()) << 20;
+	}
+
+	/**
+	 * @return true, if identical images are uploaded once and linked by further pages
+	 */
+	public boolean isUploadDedup() {
+		return Boolean.parseBoolean(props.getProperty(CFG_UPLOAD_DEDUP).trim());
+	}
+
+	/**
+	 * @return true, if the uploader converts the dump itself and uploads the pages as they come
+	 */
+	public boolean isUploadDirect() {
+		return Boolean.parseBoolean(props.getProperty(CFG_UPLOAD_DIRECT).trim());
+	}
+
+	/**
+	 * @return true, if the pages of a direct upload are written to the target path as well
+	 */
+	public boolean isUploadDirectAudit() {
+		return Boolean.parseBoolean(props.getProperty(CFG_UPLOAD_DIRECT_AUDIT).trim());
+	}
+
+	/**
+	 * @return xmlrpc, rest or standin
+	 */
+	public String getUploadTransport() {
+		return props.getProperty(CFG_UPLOAD_TRANSPORT).trim().toLowerCase();
+	}
+
+	/**
+	 * @return simulated milliseconds per request of the stand-in transport
+	 */
+	public long getUploadTransportLatency() {
+		return Long.parseLong(props.getProperty(CFG_UPLOAD_TRANSPORT_LATENCY).trim());
+	}
+
+	/**
+	 * @return true, if only new or changed pages, attachments and tags are uploaded
+	 */
+	public boolean isUploadDelta() {
+		return Boolean.parseBoolean(props.getProperty(CFG_UPLOAD_DELTA).trim());
+	}
+
+	/**
+	 * @return number of pages sent in one system.multicall request, 0 for one request per call
+	 */
+	public int getUploadBatchPages() {
+		return Integer.parseInt(props.getProperty(CFG_UPLOAD_BATCH).trim());
+	}
+
+	/**
+	 * @return maximum number of pages read but not uploaded yet, defaults to twice the sessions
+	 */
+	public int getUploadInFlight() {
+		final int inflight = Integer.parseInt(props.getProperty(CFG_UPLOAD_INFLIGHT).trim());
+		return inflight > 0 ? inflight : getUploadThreads() * 2;
+	}
+
 	public Level logLevel() {
 		return Level.parse(props.getProperty(CFG_LOG_LEVEL).trim()
 				.toUpperCase());
@@ -152,7 +434,7 @@ public class Config {
 	 * @param target
 	 * @return
 	 */
-	private <T> T[] loadObjectArray(String[] clazznames, T[] target) {
+	private synchronized <T> T[] loadObjectArray(String[] clazznames, T[] target) {
 		final ClassLoader cl = this.getClass().getClassLoader();
 		int counter = 0;
 		for (String classname : clazznames) {
@@ -201,6 +483,26 @@ public class Config {
 		return "_files.txt";
 	}
 
+	public String fileAttachments() {
+		return "_attachments";
+	}
+
+	public String fileAttachmentStore() {
+		return "_attachment_store.txt";
+	}
+
+	public String fileUploadJournal() {
+		return "_upload_journal.txt";
+	}
+
+	public String fileManifest() {
+		return "_manifest.txt";
+	}
+
+	public String fileXar() {
+		return "mediawiki.xar";
+	}
+
 	public String fileWget() {
 		return "_wget_files.cmd";
 	}
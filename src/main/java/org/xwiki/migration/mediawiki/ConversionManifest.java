@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Remembers a hash for every converted page, so the next run over a
+ * newer dump only transforms and writes the pages, which changed.
+ *
+ * The hash covers the original text, the text after the pre filters
+ * and the template resolution (thus all used templates), the target
+ * name space, revision, user and the filter configuration.
+ * The manifest is a text file with one line per page: hash, blank, title.
+ * It is only saved after a successful run, pages of the current dump
+ * replace the old entries completely.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class ConversionManifest implements IPageSelector {
+
+	private static final String HASH_ALGORITHM = "SHA-1";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File file;
+	private final String signature;
+	private final Map<String, String> previous = new ConcurrentHashMap<String, String>();
+	private final Map<String, String> current = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger unchanged = new AtomicInteger();
+
+	/**
+	 * @param file
+	 * @param signature describes the configuration, a different signature invalidates all entries
+	 */
+	public ConversionManifest(File file, String signature) {
+		this.file = file;
+		this.signature = signature;
+	}
+
+	/**
+	 * Reads the manifest of the last run, if there is one.
+	 *
+	 * @throws IOException
+	 */
+	public void load() throws IOException {
+		previous.clear();
+		if (!file.exists()) {
+			return;
+		}
+		final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+		try {
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				final int blank = line.indexOf(' ');
+				if (blank > 0) {
+					previous.put(line.substring(blank + 1), line.substring(0, blank));
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * Records the hash of the page, call it after the name space is determined.
+	 *
+	 * @see org.xwiki.migration.mediawiki.IPageSelector#accept(org.xwiki.migration.mediawiki.xmldump.model.SimPage)
+	 * @return false, if the page is unchanged since the last run
+	 */
+	@Override
+	public boolean accept(SimPage page) throws Exception {
+		final String hash = hash(page);
+		current.put(page.getTitle(), hash);
+		if (hash.equals(previous.get(page.getTitle()))) {
+			unchanged.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of pages skipped so far
+	 */
+	public int getUnchanged() {
+		return unchanged.get();
+	}
+
+	/**
+	 * Replaces the manifest file by the hashes of this run.
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		final File temp = new File(file.getPath() + ".tmp");
+		final Writer w = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try {
+			for (Map.Entry<String, String> entry : current.entrySet()) {
+				w.write(entry.getValue());
+				w.write(' ');
+				w.write(entry.getKey());
+				w.write('\n');
+			}
+		} finally {
+			w.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Error, can't replace: " + file);
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Error, can't rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * @param page
+	 * @return hex encoded hash
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnsupportedEncodingException
+	 */
+	private String hash(SimPage page) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		final MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+		update(md, signature);
+		update(md, page.getTitle());
+		update(md, page.getNamespace());
+		update(md, page.getRevision() != null ? Long.toString(page.getRevision().getTime()) : null);
+		update(md, page.getUsername());
+		update(md, page.getOriginal());
+		update(md, page.getText());
+		final byte[] digest = md.digest();
+		final char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private static void update(MessageDigest md, String value) throws UnsupportedEncodingException {
+		if (value != null) {
+			md.update(value.getBytes("UTF-8"));
+		}
+		// separator, so "ab"+"c" differs from "a"+"bc"
+		md.update((byte) 0);
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.xwiki.migration.mediawiki.xmldump.IPageHandler;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Processes pages in stages, each stage has its own thread pool.
+ * Stages are connected by bounded queues: if a stage falls behind,
+ * the stage before blocks, thus the memory footprint stays bounded.
+ *
+ * The pipeline itself is the {@link IPageHandler} of the parser,
+ * call {@link #finish()} after the last page.
+ * After the first failure all further pages are skipped.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class ConversionPipeline implements IPageHandler {
+
+	private final int queuesize;
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	/**
+	 * @param queuesize number of pages waiting in front of each stage
+	 */
+	public ConversionPipeline(int queuesize) {
+		this.queuesize = Math.max(1, queuesize);
+	}
+
+	/**
+	 * Appends a stage to the pipeline.
+	 *
+	 * @param name used for the thread names
+	 * @param threads
+	 * @param handler does the work of this stage
+	 * @return this
+	 */
+	public ConversionPipeline addStage(String name, int threads, IPageHandler handler) {
+		return addStage(name, threads, handler, null);
+	}
+
+	/**
+	 * Appends a stage to the pipeline, which may drop pages.
+	 *
+	 * @param name used for the thread names
+	 * @param threads
+	 * @param handler does the work of this stage
+	 * @param selector decides after the handler, whether the page goes on, may be null
+	 * @return this
+	 */
+	public ConversionPipeline addStage(String name, int threads, IPageHandler handler, IPageSelector selector) {
+		stages.add(new Stage(name, Math.max(1, threads), handler, selector, stages.size()));
+		return this;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IPageHandler#handlePage(org.xwiki.migration.mediawiki.xmldump.model.SimPage)
+	 */
+	@Override
+	public void handlePage(SimPage page) throws Exception {
+		checkFailure();
+		if (stages.isEmpty()) {
+			throw new IllegalStateException("No stages added yet.");
+		}
+		stages.get(0).submit(page);
+	}
+
+	/**
+	 * Waits until all pages passed all stages.
+	 *
+	 * @throws Exception the first failure of any stage
+	 */
+	public void finish() throws Exception {
+		// a stage gets no more pages, once the stage before has terminated
+		for (Stage stage : stages) {
+			stage.executor.shutdown();
+			while (!stage.executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// keep on waiting
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stops all stages, pages in progress are dropped.
+	 */
+	public void abort() {
+		for (Stage stage : stages) {
+			stage.executor.shutdownNow();
+		}
+	}
+
+	private void checkFailure() throws Exception {
+		final Exception e = failure.get();
+		if (e != null) {
+			throw e;
+		}
+	}
+
+	/**
+	 * A thread pool with a bounded queue, which blocks the
+	 * submitting thread instead of rejecting a page.
+	 */
+	private class Stage {
+
+		private final IPageHandler handler;
+		private final IPageSelector selector;
+		private final int position;
+		private final ThreadPoolExecutor executor;
+
+		Stage(final String name, int threads, IPageHandler handler, IPageSelector selector, int position) {
+			this.handler = handler;
+			this.selector = selector;
+			this.position = position;
+			this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queuesize), new ThreadFactory() {
+						private final AtomicInteger counter = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable r) {
+							return new Thread(r, "pipeline-" + name + "-" + counter.incrementAndGet());
+						}
+					}, new RejectedExecutionHandler() {
+						@Override
+						public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+							if (executor.isShutdown()) {
+								throw new RejectedExecutionException("stage " + name + " is shut down");
+							}
+							try {
+								executor.getQueue().put(r);
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new RejectedExecutionException("interrupted while waiting for stage " + name);
+							}
+						}
+					});
+		}
+
+		void submit(final SimPage page) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (failure.get() != null) {
+						return;
+					}
+					try {
+						handler.handlePage(page);
+						if (selector != null && !selector.accept(page)) {
+							return;
+						}
+						if (position + 1 < stages.size()) {
+							stages.get(position + 1).submit(page);
+						}
+					} catch (Exception e) {
+						failure.compareAndSet(null, new IllegalStateException("failed to process page " + page.getTitle(), e));
+					}
+				}
+			});
+		}
+	}
+}
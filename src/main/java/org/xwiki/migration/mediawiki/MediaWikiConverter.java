@@ -18,30 +18,29 @@ package org.xwiki.migration.mediawiki;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.text.MessageFormat;
 import java.util.Arrays;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.StreamSupport;
 
-import javax.xml.parsers.ParserConfigurationException;
 
-import org.wikimodel.wem.CompositeListener;
-import org.wikimodel.wem.IWikiPrinter;
 import org.wikimodel.wem.WikiParserException;
-import org.wikimodel.wem.mediawiki.MediaWikiParser;
-import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
-import org.xml.sax.SAXException;
+import org.xwiki.migration.mediawiki.output.FolderPageWriter;
+import org.xwiki.migration.mediawiki.output.IPageWriter;
+import org.xwiki.migration.mediawiki.output.PackPageWriter;
+import org.xwiki.migration.mediawiki.output.XarPageWriter;
 import org.xwiki.migration.mediawiki.xmldump.DumpParser;
+import org.xwiki.migration.mediawiki.xmldump.DumpSpliterator;
 import org.xwiki.migration.mediawiki.xmldump.INameSpaceResolver;
+import org.xwiki.migration.mediawiki.xmldump.IPageHandler;
+import org.xwiki.migration.mediawiki.xmldump.IPostTransformEventFilter;
 import org.xwiki.migration.mediawiki.xmldump.IPostTransformFilter;
+import org.xwiki.migration.mediawiki.xmldump.IPreTransformFilter;
 import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
 
 
@@ -52,11 +51,25 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
  */
 public class MediaWikiConverter {
 
-	final static String NL = System.getProperty("line.separator");
-	
-    private final Config cfg = new Config();
+    private final Config cfg;
     private final Logger logger = Logger.getLogger(this.getClass().getName());
-    private final Set<File> wgetcmds = new LinkedHashSet<File>();
+    private final ThreadLocal<WikiTransformer> transformers = new ThreadLocal<WikiTransformer>() {
+		@Override
+		protected WikiTransformer initialValue() {
+			return new WikiTransformer(cfg.getPostFilters());
+		}
+    };
+
+	public MediaWikiConverter() {
+		this(new Config());
+	}
+
+	/**
+	 * @param cfg
+	 */
+	public MediaWikiConverter(Config cfg) {
+		this.cfg = cfg;
+	}
     
 	/**
 	 * @param args
@@ -72,17 +85,34 @@ public class MediaWikiConverter {
 		}
 	}
 
+	/**
+	 * @param level
+	 */
+	public void setLogLevel(Level level) {
+		logger.setLevel(level);
+	}
+
+    /**
+	 * @throws Exception
+	 */
+	private void convert() throws Exception {
+		convert(null);
+	}
+
     /**
-	 * @throws IOException 
-	 * @throws SAXException 
-	 * @throws ParserConfigurationException 
-	 * @throws WikiParserException 
+     * Converts the dump, the writer is closed afterwards.
+     *
+     * @param target receives the pages, null for the configured target format
+	 * @throws Exception
 	 */
-	private void convert() throws ParserConfigurationException, SAXException, IOException, WikiParserException {
+	public void convert(IPageWriter target) throws Exception {
 	    String dumpfile = cfg.getSourceDump();
 	    String targetpath = cfg.getTargetPath();
 		final File dumpf = new File(dumpfile);
 		if (!dumpf.exists()) {
+			if (target != null) {
+				target.close();
+			}
 			return;
 		}
 		final File outpf = new File(targetpath);
@@ -91,38 +121,193 @@ public class MediaWikiConverter {
 		}
 		final DumpParser dparser = new DumpParser();
 		dparser.setLogLevel(logger.getLevel());
+		dparser.setIndexFile(cfg.getSourceDumpIndex());
+		dparser.setDecoderThreads(cfg.getSourceDumpThreads());
 		
+		final IPageWriter writer = target != null ? target : createPageWriter();
+		ConversionManifest manifest = null;
+		if (cfg.isTargetIncremental() && writer instanceof FolderPageWriter) {
+			// other formats rewrite all pages on each run
+			manifest = new ConversionManifest(new File(outpf, cfg.fileManifest()), cfg.getConversionSignature());
+			manifest.load();
+		}
+		try {
+			final String mode = cfg.getSourceDumpMode();
+			if ("dom".equals(mode)) {
+				convertDom(dparser, dumpfile, writer, manifest);
+			} else if ("parallel".equals(mode) && !isCompressed(dumpfile)) {
+				convertParallel(dparser, dumpfile, writer, manifest);
+			} else {
+				convertStream(dparser, dumpfile, writer, manifest);
+			}
+		} finally {
+			writer.close();
+		}
+		if (manifest != null) {
+			manifest.save();
+			logger.info(manifest.getUnchanged() + " unchanged pages skipped.");
+		}
+		logger.info("Done.");
+	}
+
+	/**
+	 * Loads the whole dump into memory before converting the pages.
+	 *
+	 * @param dparser
+	 * @param dumpfile
+	 * @param writer
+	 * @param manifest skips unchanged pages, may be null
+	 * @throws Exception
+	 */
+	private void convertDom(DumpParser dparser, String dumpfile, IPageWriter writer, ConversionManifest manifest) throws Exception {
 		logger.info("parsing dumpfile ...");
 		dparser.parse(dumpfile);
-		
-		logger.info("pre filtering ...");
-		dparser.filterPages(cfg.getPreFilters());
-		
-		logger.info("resolving templates ...");
-		dparser.resolveTemplates();
 		List<SimPage> pages = dparser.getPages();
 		
-		logger.info("saving pages ...");
-		for (SimPage p : pages) {
-			final String namespace = determineNameSpace(p);
-			final File namespacef = new File(targetpath + File.separatorChar + namespace);
-			if (!namespacef.exists()) namespacef.mkdir();
-			final String pagename = XWikiSerializer2.clearName(p.getTitle(), true, true);
-			final File pagefolder = new File(namespacef, pagename);
-			if (!pagefolder.exists()) pagefolder.mkdir();
-			
-			transform(p);
-			filterPostPageTransform(p);
-			writeText(p, pagefolder);
-			writeOriginalText(p, pagefolder);
-			writeTitle(p, pagefolder);
-			writeCategories(p, pagefolder);
-			writeFiles(p, pagefolder);
-			writeTimestamp(p, pagefolder);
-			writeUser(p, pagefolder);
+		logger.info("converting pages ...");
+		final ConversionPipeline pipeline = createPipeline(dparser, writer, manifest);
+		try {
+			for (SimPage p : pages) {
+				pipeline.handlePage(p);
+			}
+		} catch (Exception e) {
+			pipeline.abort();
+			throw e;
 		}
-		writeWgetSummaryFile();
-		logger.info("Done.");
+		pipeline.finish();
+	}
+
+	/**
+	 * Keeps only the templates in memory, the pages are
+	 * converted while streaming through the dump.
+	 *
+	 * @param dparser
+	 * @param dumpfile
+	 * @param writer
+	 * @param manifest skips unchanged pages, may be null
+	 * @throws Exception
+	 */
+	private void convertStream(final DumpParser dparser, String dumpfile, IPageWriter writer, ConversionManifest manifest) throws Exception {
+		logger.info("scanning dumpfile for templates ...");
+		dparser.scanTemplates(dumpfile);
+
+		logger.info("streaming pages ...");
+		final ConversionPipeline pipeline = createPipeline(dparser, writer, manifest);
+		try {
+			dparser.streamPages(dumpfile, pipeline);
+		} catch (Exception e) {
+			pipeline.abort();
+			throw e;
+		}
+		pipeline.finish();
+	}
+
+	/**
+	 * Like {@link #convertStream(DumpParser, String, IPageWriter, ConversionManifest)}, but the dump is split into
+	 * byte ranges, which are parsed on all cores.
+	 *
+	 * @param dparser
+	 * @param dumpfile
+	 * @param writer
+	 * @param manifest skips unchanged pages, may be null
+	 * @throws Exception
+	 */
+	private void convertParallel(final DumpParser dparser, String dumpfile, IPageWriter writer, ConversionManifest manifest) throws Exception {
+		logger.info("scanning dumpfile for templates ...");
+		dparser.scanTemplates(dumpfile);
+
+		logger.info("parsing pages in parallel ...");
+		final ConversionPipeline pipeline = createPipeline(dparser, writer, manifest);
+		final DumpSpliterator pages = dparser.pageSpliterator(dumpfile, cfg.getSourceDumpShards());
+		try {
+			StreamSupport.stream(pages, true).forEach(new Consumer<SimPage>() {
+				@Override
+				public void accept(SimPage page) {
+					try {
+						pipeline.handlePage(page);
+					} catch (Exception e) {
+						throw new IllegalStateException("failed to convert page " + page.getTitle(), e);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			pipeline.abort();
+			throw e;
+		} finally {
+			pages.close();
+		}
+		pipeline.finish();
+	}
+
+	/**
+	 * The parser feeds the pages into these stages:
+	 * filter (pre filters, templates, name space) -&gt; transform -&gt; postfilter -&gt; [fetch] -&gt; write
+	 * Pages, which the manifest knows unchanged, leave after the filter stage.
+	 * The fetch stage downloads the attachments, if source.fetch.threads is set.
+	 *
+	 * @param dparser
+	 * @param writer
+	 * @param manifest may be null
+	 * @return the pipeline
+	 */
+	private ConversionPipeline createPipeline(final DumpParser dparser, final IPageWriter writer, ConversionManifest manifest) {
+		final IPreTransformFilter[] prefilters = cfg.getPreFilters();
+		final ConversionPipeline pipeline = new ConversionPipeline(cfg.getPipelineQueueSize())
+				.addStage("filter", cfg.getPipelineThreads("filter"), new IPageHandler() {
+					@Override
+					public void handlePage(SimPage page) throws Exception {
+						dparser.filterPage(page, prefilters);
+						dparser.resolveTemplates(page);
+						page.setNamespace(determineNameSpace(page));
+					}
+				}, manifest)
+				.addStage("transform", cfg.getPipelineThreads("transform"), new IPageHandler() {
+					@Override
+					public void handlePage(SimPage page) throws Exception {
+						transform(page);
+					}
+				})
+				.addStage("postfilter", cfg.getPipelineThreads("postfilter"), new IPageHandler() {
+					@Override
+					public void handlePage(SimPage page) throws Exception {
+						filterPostPageTransform(page);
+					}
+				});
+		if (cfg.getSourceFetchThreads() > 0) {
+			final AttachmentFetcher fetcher = new AttachmentFetcher(cfg.getSourceFetchURL(), cfg.getSourceFetchThreads());
+			pipeline.addStage("fetch", cfg.getSourceFetchThreads(), new IPageHandler() {
+				@Override
+				public void handlePage(SimPage page) throws Exception {
+					fetcher.fetch(page, writer);
+				}
+			});
+		}
+		return pipeline.addStage("write", cfg.getPipelineThreads("write"), new IPageHandler() {
+			@Override
+			public void handlePage(SimPage page) throws Exception {
+				logger.fine("saving page " + page.getTitle() + " ...");
+				writer.writePage(page);
+			}
+		});
+	}
+
+	/**
+	 * @return the writer for the configured target format
+	 * @throws IOException
+	 */
+	public IPageWriter createPageWriter() throws IOException {
+		final String format = cfg.getTargetFormat();
+		if ("pack".equals(format)) {
+			return new PackPageWriter(cfg);
+		} else if ("xar".equals(format)) {
+			return new XarPageWriter(cfg);
+		}
+		return new FolderPageWriter(cfg);
+	}
+
+	private static boolean isCompressed(String dumpfile) {
+		final String name = dumpfile.toLowerCase();
+		return name.endsWith(".gz") || name.endsWith(".bz2");
 	}
 
 	/**
@@ -149,8 +334,9 @@ public class MediaWikiConverter {
 	 * @throws IOException
 	 */
 	private void transform(SimPage page) throws WikiParserException, IOException {
-	    final CollectReferencesListener pagerefs = new CollectReferencesListener();
-	    final String xwikitext = transformWikiText(page.getText(), pagerefs);
+	    final WikiTransformer transformer = transformers.get();
+	    final String xwikitext = transformer.transform(page.getText());
+	    final CollectReferencesListener pagerefs = transformer.getReferences();
 	    if (pagerefs.getFiles().length > 0) {
 	        for (String f : pagerefs.getFiles()) {
 				page.addFile(f);
@@ -169,156 +355,18 @@ public class MediaWikiConverter {
 	 */
 	private void filterPostPageTransform(SimPage page) {
 		for (IPostTransformFilter postfilter : cfg.getPostFilters()) {
-			postfilter.filterPage(page);
-		}
-	}
-
-	/**
-	 * @param page
-	 * @param pagefolder
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private void writeOriginalText(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
-		File originalf = new File(pagefolder, cfg.fileOriginal());
-        FileOutputStream fos = new FileOutputStream(originalf);
-		OutputStreamWriter foriginal = new OutputStreamWriter(fos,"UTF-8");
-        foriginal.write(page.getOriginal());
-        foriginal.close();
-	}
-	
-	/**
-	 * @param page
-	 * @param pagefolder
-	 * @throws IOException 
-	 */
-	private void writeText(SimPage page, File pagefolder) throws IOException {
-		logger.fine("saving page " + page.getTitle() + " ...");
-		File textf = new File(pagefolder, cfg.fileXwikiText());
-		final FileOutputStream fos = new FileOutputStream(textf);
-		final OutputStreamWriter w = new OutputStreamWriter(fos, "UTf-8");
-		w.write(page.getText());
-		w.close();
-	}
-	
-	/**
-	 * @param page
-	 * @param pagefolder
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private void writeTitle(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
-        FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileTitle()));
-		OutputStreamWriter titlef = new OutputStreamWriter(fos, "UTF-8");
-        titlef.write(page.getTitle());
-        titlef.close();
-	}
-	
-	/**
-	 * @param page
-	 * @param pagefolder
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private void writeCategories(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
-	    // categories ...
-	    if (page.getCategories().length > 0) {
-	    	final File ctgfile = new File(pagefolder, cfg.fileCategories());
-	    	final FileOutputStream fos = new FileOutputStream(ctgfile);
-	    	final OutputStreamWriter osw = new OutputStreamWriter(fos, "UTF-8");
-	    	for (String category : page.getCategories()) {
-	    		osw.write(category + NL);
-	    	}
-	    	osw.close();
-	    }
-	}
-	
-	/**
-	 * @param page
-	 * @param pagefolder
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private void writeTimestamp(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
-        FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileTimestamp()));
-		OutputStreamWriter titlef = new OutputStreamWriter(fos,"UTF-8");
-        titlef.write(Long.toString(page.getRevision().getTime()));
-        titlef.close();
-	}
-	
-	/**
-	 * @param page
-	 * @param pagefolder
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private void writeUser(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
-        FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileUser()));
-		OutputStreamWriter userf = new OutputStreamWriter(fos,"UTF-8");
-        userf.write(page.getUsername());
-        userf.close();
-	}
-
-	/**
-	 * @param page
-	 * @param pagefolder
-	 * @throws IOException
-	 * @throws FileNotFoundException
-	 */
-	private void writeFiles(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
-	    if (page.sizeFiles() > 0) {
-	        final FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileFiles()));
-			final OutputStreamWriter ffiles = new OutputStreamWriter(fos,"UTF-8");
-	        File wgetfile = new File(pagefolder, cfg.fileWget());
-			final FileOutputStream ffos = new FileOutputStream(wgetfile);
-	        final OutputStreamWriter osw = new OutputStreamWriter(ffos);
-	        for (String f : page.getFiles()) {
-	            osw.write(MessageFormat.format(cfg.getSourceDownloadURL(), f, XWikiSerializer2.clearName(f)) + NL);
-	            ffiles.write(XWikiSerializer2.clearName(f) + NL);
-	        }
-	        osw.close();
-	        ffiles.close();
-	        wgetcmds.add(wgetfile);
-	    }
-	}
-
-	private void writeWgetSummaryFile() throws IOException {
-		if (wgetcmds.size() > 0) {
-			File wgetsf = new File(new File(cfg.getTargetPath()), cfg.fileWget());
-			logger.info("writing wget summary file " + wgetsf.getPath() + " ...");
-			FileOutputStream fos = new FileOutputStream(wgetsf);
-			OutputStreamWriter osw = new OutputStreamWriter(fos,"UTF-8");
-			for (File f : wgetcmds) {
-				f = f.getAbsoluteFile();
-				// X:
-				osw.write(f.getAbsolutePath().substring(0,2) + NL );
-				// CD target folder && call _wget_files.cmd
-				osw.write("CD " + f.getParent() + " && CALL " + cfg.fileWget() + NL);
+			// event filters already did their job during the transformation
+			if (!(postfilter instanceof IPostTransformEventFilter)) {
+				postfilter.filterPage(page);
 			}
-			osw.close();
 		}
 	}
-	
-	/**
-	 * @param source
-	 * @param fileListener
-	 * @return
-	 * @throws WikiParserException
-	 */
-	private String transformWikiText(String source, CollectReferencesListener fileListener) throws WikiParserException {
-		final StringReader reader = new StringReader(source);
-		final MediaWikiParser parser = new MediaWikiParser();
-		IWikiPrinter wprnt = new org.wikimodel.wem.WikiPrinter();
-		final XWikiSerializer2 iwlistener = new XWikiSerializer2(wprnt);
-		parser.parse(reader, new CompositeListener(iwlistener, fileListener));
-		return wprnt.toString();
-	}
 
 	private void testWikiSource() throws Exception {
 		String source = loadTextFile(new File("sample-data/mediawiki.04.txt")).toString();
-		final CollectReferencesListener filrefs = new CollectReferencesListener();
-		System.out.println(transformWikiText(source, filrefs));
-		printFiles(filrefs);
+		final WikiTransformer transformer = transformers.get();
+		System.out.println(transformer.transform(source));
+		printFiles(transformer.getReferences());
 	}
 	
 	private void printFiles(CollectReferencesListener colrefs) {
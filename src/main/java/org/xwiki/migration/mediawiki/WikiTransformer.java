@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki;
+
+import java.io.StringReader;
+
+import org.wikimodel.wem.CompositeListener;
+import org.wikimodel.wem.IWemListener;
+import org.wikimodel.wem.IWikiPrinter;
+import org.wikimodel.wem.WikiParserException;
+import org.wikimodel.wem.mediawiki.MediaWikiParser;
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.xmldump.IPostTransformEventFilter;
+import org.xwiki.migration.mediawiki.xmldump.IPostTransformFilter;
+
+/**
+ * Transforms MediaWiki text to XWiki text. Parser, serializer, event filters
+ * and the output buffer are created once and reused for all pages.
+ *
+ * Not thread safe, use one instance per thread.
+ * The serializer is recreated after a failed page, since it may
+ * have been left within an open list or table.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class WikiTransformer {
+
+	private static final int BUFFER_SIZE = 64 << 10;
+	/** larger buffers are released after the page, so a single huge page doesn't stick */
+	private static final int BUFFER_LIMIT = 4 << 20;
+
+	private final MediaWikiParser parser = new MediaWikiParser();
+	private final CollectReferencesListener references = new CollectReferencesListener();
+	private final IPostTransformFilter[] postfilters;
+	private StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+	private IWemListener listener = null;
+
+	private final IWikiPrinter printer = new IWikiPrinter() {
+		@Override
+		public void print(String str) {
+			buffer.append(str);
+		}
+
+		@Override
+		public void println(String str) {
+			buffer.append(str).append('\n');
+		}
+	};
+
+	/**
+	 * @param postfilters the {@link IPostTransformEventFilter}s among them are applied
+	 */
+	public WikiTransformer(IPostTransformFilter... postfilters) {
+		this.postfilters = postfilters;
+	}
+
+	/**
+	 * @param source MediaWiki text
+	 * @return XWiki text
+	 * @throws WikiParserException
+	 */
+	public String transform(String source) throws WikiParserException {
+		buffer.setLength(0);
+		buffer.ensureCapacity(source.length() + (source.length() >> 2));
+		references.reset();
+		if (listener == null) {
+			listener = createListener();
+		}
+		boolean success = false;
+		try {
+			parser.parse(new StringReader(source), listener);
+			success = true;
+		} finally {
+			if (!success) {
+				listener = null;
+			}
+		}
+		final String result = buffer.toString();
+		if (buffer.capacity() > BUFFER_LIMIT) {
+			buffer = new StringBuilder(BUFFER_SIZE);
+		}
+		return result;
+	}
+
+	/**
+	 * @return files and categories of the last transformed page
+	 */
+	public CollectReferencesListener getReferences() {
+		return references;
+	}
+
+	/**
+	 * @return the serializer behind the event filters, together with the reference collector
+	 */
+	private IWemListener createListener() {
+		IWemListener serializer = new XWikiSerializer2(printer);
+		// the first configured event filter gets the events first
+		for (int i = postfilters.length - 1; i >= 0; i--) {
+			if (postfilters[i] instanceof IPostTransformEventFilter) {
+				serializer = ((IPostTransformEventFilter) postfilters[i]).decorate(serializer);
+			}
+		}
+		return new CompositeListener(serializer, references);
+	}
+}
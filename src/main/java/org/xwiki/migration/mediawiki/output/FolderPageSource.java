@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.migration.mediawiki.xmldump.IPageHandler;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Reads the pages written by the {@link FolderPageWriter},
+ * name space folder by name space folder.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class FolderPageSource implements IPageSource {
+
+	private static final FileFilter DIRECTORIES = new FileFilter() {
+		@Override
+		public boolean accept(File f) {
+			return f.isDirectory();
+		}
+	};
+
+	private final Config cfg;
+	private final File targetpath;
+
+	/**
+	 * @param cfg
+	 */
+	public FolderPageSource(Config cfg) {
+		this.cfg = cfg;
+		this.targetpath = new File(cfg.getTargetPath());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageSource#readPages(org.xwiki.migration.mediawiki.xmldump.IPageHandler)
+	 */
+	@Override
+	public void readPages(IPageHandler handler) throws Exception {
+		for (File namespacepath : targetpath.listFiles(DIRECTORIES)) {
+			for (File pagefolder : namespacepath.listFiles(DIRECTORIES)) {
+				handler.handlePage(readPage(namespacepath.getName(), pagefolder));
+			}
+		}
+	}
+
+	/**
+	 * @param namespace
+	 * @param pagefolder
+	 * @return the page
+	 * @throws IOException
+	 */
+	private SimPage readPage(String namespace, File pagefolder) throws IOException {
+		final SimPage page = new SimPage();
+		page.setNamespace(namespace);
+		page.setTitle(loadTextFile(new File(pagefolder, cfg.fileTitle())).toString());
+		page.setText(loadTextFile(new File(pagefolder, cfg.fileXwikiText())).toString());
+		final File ofile = new File(pagefolder, cfg.fileOriginal());
+		if (ofile.canRead() && ofile.length() > 0) {
+			page.setOriginal(loadTextFile(ofile).toString());
+		}
+		page.setRevision(new Date(Long.parseLong(loadRequiredFile(new File(pagefolder, cfg.fileTimestamp())))));
+		page.setUsername(loadRequiredFile(new File(pagefolder, cfg.fileUser())));
+		final File ctgfile = new File(pagefolder, cfg.fileCategories());
+		if (ctgfile.exists()) {
+			for (String category : loadLines(ctgfile)) {
+				page.addCategory(category);
+			}
+		}
+		final File ffile = new File(pagefolder, cfg.fileFiles());
+		if (ffile.exists()) {
+			for (String filename : loadLines(ffile)) {
+				page.addFile(filename);
+			}
+		}
+		return page;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageSource#getAttachment(org.xwiki.migration.mediawiki.xmldump.model.SimPage, java.lang.String)
+	 */
+	@Override
+	public File getAttachment(SimPage page, String filename) {
+		final File namespacef = new File(targetpath, page.getNamespace());
+		return new File(new File(namespacef, XWikiSerializer2.clearName(page.getTitle(), true, true)), filename);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		// nothing to close
+	}
+
+	/**
+	 * @param file
+	 * @return the trimmed content
+	 * @throws IOException
+	 * @throws IllegalStateException if the file can't be read
+	 */
+	private String loadRequiredFile(File file) throws IOException {
+		if (!file.canRead()) throw new IllegalStateException("Error, can't read from: " + file);
+		return loadTextFile(file).toString().trim();
+	}
+
+	private String[] loadLines(File file) throws IOException {
+		final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		final List<String> lines = new ArrayList<String>();
+		for (String line = br.readLine(); line != null; line = br.readLine()) {
+			lines.add(line);
+		}
+		br.close();
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * @param file
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws UnsupportedEncodingException
+	 * @throws IOException
+	 */
+	private StringBuilder loadTextFile(File file) throws FileNotFoundException, UnsupportedEncodingException, IOException {
+		FileInputStream fis = new FileInputStream(file);
+		InputStreamReader isr = new InputStreamReader(fis, "UTF-8");
+		StringBuilder text = new StringBuilder((int)file.length());
+		char[] buf = new char[4096];
+		int read = -1;
+		while ((read = isr.read(buf)) > 0) {
+			text.append(buf, 0, read);
+		}
+		isr.close();
+		return text;
+	}
+}
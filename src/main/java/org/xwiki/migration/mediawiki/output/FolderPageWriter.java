@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Writes each page into its own folder below its name space folder,
+ * one small file for text, original, title, categories, files,
+ * timestamp and user. Attachments are downloaded into the page folder.
+ * A file referenced by several pages is downloaded once, the
+ * download commands of the further pages copy it.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class FolderPageWriter implements IPageWriter {
+
+	final static String NL = System.getProperty("line.separator");
+
+	private final Config cfg;
+	private final Set<File> wgetcmds = new LinkedHashSet<File>();
+	/** file name -&gt; folder of the first page downloading it */
+	private final Map<String, File> downloads = new HashMap<String, File>();
+
+	/**
+	 * @param cfg
+	 */
+	public FolderPageWriter(Config cfg) {
+		this.cfg = cfg;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#writePage(org.xwiki.migration.mediawiki.xmldump.model.SimPage)
+	 */
+	@Override
+	public void writePage(SimPage p) throws IOException {
+		final File namespacef = new File(cfg.getTargetPath() + File.separatorChar + p.getNamespace());
+		if (!namespacef.exists()) namespacef.mkdir();
+		final String pagename = XWikiSerializer2.clearName(p.getTitle(), true, true);
+		final File pagefolder = new File(namespacef, pagename);
+		if (!pagefolder.exists()) pagefolder.mkdir();
+		
+		writeText(p, pagefolder);
+		writeOriginalText(p, pagefolder);
+		writeTitle(p, pagefolder);
+		writeCategories(p, pagefolder);
+		writeFiles(p, pagefolder);
+		writeTimestamp(p, pagefolder);
+		writeUser(p, pagefolder);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#getAttachment(org.xwiki.migration.mediawiki.xmldump.model.SimPage, java.lang.String)
+	 */
+	@Override
+	public File getAttachment(SimPage page, String filename) {
+		final File namespacef = new File(cfg.getTargetPath() + File.separatorChar + page.getNamespace());
+		return new File(new File(namespacef, XWikiSerializer2.clearName(page.getTitle(), true, true)), filename);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		writeWgetSummaryFile();
+	}
+
+	/**
+	 * @param page
+	 * @param pagefolder
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private void writeOriginalText(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
+		File originalf = new File(pagefolder, cfg.fileOriginal());
+        FileOutputStream fos = new FileOutputStream(originalf);
+		OutputStreamWriter foriginal = new OutputStreamWriter(fos,"UTF-8");
+        foriginal.write(page.getOriginal());
+        foriginal.close();
+	}
+	
+	/**
+	 * @param page
+	 * @param pagefolder
+	 * @throws IOException 
+	 */
+	private void writeText(SimPage page, File pagefolder) throws IOException {
+		File textf = new File(pagefolder, cfg.fileXwikiText());
+		final FileOutputStream fos = new FileOutputStream(textf);
+		final OutputStreamWriter w = new OutputStreamWriter(fos, "UTf-8");
+		w.write(page.getText());
+		w.close();
+	}
+	
+	/**
+	 * @param page
+	 * @param pagefolder
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private void writeTitle(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
+        FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileTitle()));
+		OutputStreamWriter titlef = new OutputStreamWriter(fos, "UTF-8");
+        titlef.write(page.getTitle());
+        titlef.close();
+	}
+	
+	/**
+	 * @param page
+	 * @param pagefolder
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private void writeCategories(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
+	    // categories ...
+	    if (page.getCategories().length > 0) {
+	    	final File ctgfile = new File(pagefolder, cfg.fileCategories());
+	    	final FileOutputStream fos = new FileOutputStream(ctgfile);
+	    	final OutputStreamWriter osw = new OutputStreamWriter(fos, "UTF-8");
+	    	for (String category : page.getCategories()) {
+	    		osw.write(category + NL);
+	    	}
+	    	osw.close();
+	    }
+	}
+	
+	/**
+	 * @param page
+	 * @param pagefolder
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private void writeTimestamp(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
+        FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileTimestamp()));
+		OutputStreamWriter titlef = new OutputStreamWriter(fos,"UTF-8");
+        titlef.write(Long.toString(page.getRevision().getTime()));
+        titlef.close();
+	}
+	
+	/**
+	 * @param page
+	 * @param pagefolder
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private void writeUser(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
+        FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileUser()));
+		OutputStreamWriter userf = new OutputStreamWriter(fos,"UTF-8");
+        userf.write(page.getUsername());
+        userf.close();
+	}
+
+	/**
+	 * @param page
+	 * @param pagefolder
+	 * @throws IOException
+	 * @throws FileNotFoundException
+	 */
+	private void writeFiles(SimPage page, File pagefolder) throws IOException, FileNotFoundException {
+	    if (page.sizeFiles() > 0) {
+	        final FileOutputStream fos = new FileOutputStream(new File(pagefolder, cfg.fileFiles()));
+			final OutputStreamWriter ffiles = new OutputStreamWriter(fos,"UTF-8");
+	        File wgetfile = new File(pagefolder, cfg.fileWget());
+	        final List<String> cmds = new ArrayList<String>();
+	        synchronized (wgetcmds) {
+	        	// the summary calls the first downloader before the pages copying from it
+	        	for (String f : page.getFiles()) {
+	        		final String name = XWikiSerializer2.clearName(f);
+	        		final File first = downloads.get(name);
+	        		if (first == null || first.equals(pagefolder)) {
+	        			downloads.put(name, pagefolder);
+	        			cmds.add(MessageFormat.format(cfg.getSourceDownloadURL(), f, name));
+	        		} else {
+	        			cmds.add("COPY /Y \"" + new File(first, name).getAbsolutePath() + "\" \"" + name + "\"");
+	        		}
+	        	}
+	        	wgetcmds.add(wgetfile);
+	        }
+			final FileOutputStream ffos = new FileOutputStream(wgetfile);
+	        final OutputStreamWriter osw = new OutputStreamWriter(ffos);
+	        for (String cmd : cmds) {
+	            osw.write(cmd + NL);
+	        }
+	        for (String f : page.getFiles()) {
+	            ffiles.write(XWikiSerializer2.clearName(f) + NL);
+	        }
+	        osw.close();
+	        ffiles.close();
+	    }
+	}
+
+	private synchronized void writeWgetSummaryFile() throws IOException {
+		if (wgetcmds.size() > 0) {
+			File wgetsf = new File(new File(cfg.getTargetPath()), cfg.fileWget());
+			FileOutputStream fos = new FileOutputStream(wgetsf);
+			OutputStreamWriter osw = new OutputStreamWriter(fos,"UTF-8");
+			for (File f : wgetcmds) {
+				f = f.getAbsoluteFile();
+				// X:
+				osw.write(f.getAbsolutePath().substring(0,2) + NL );
+				// CD target folder && call _wget_files.cmd
+				osw.write("CD " + f.getParent() + " && CALL " + cfg.fileWget() + NL);
+			}
+			osw.close();
+		}
+	}
+}
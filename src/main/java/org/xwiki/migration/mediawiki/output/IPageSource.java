@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.Closeable;
+import java.io.File;
+
+import org.xwiki.migration.mediawiki.xmldump.IPageHandler;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Reads the pages written by an {@link IPageWriter}.
+ * The files of a page are the names of its attachments.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public interface IPageSource extends Closeable {
+
+	/**
+	 * Reads all pages, one after the other.
+	 *
+	 * @param handler
+	 * @throws Exception
+	 */
+	public abstract void readPages(IPageHandler handler) throws Exception;
+
+	/**
+	 * @param page
+	 * @param filename one of {@link SimPage#getFiles()}
+	 * @return the downloaded attachment, may not exist
+	 */
+	public abstract File getAttachment(SimPage page, String filename);
+
+}
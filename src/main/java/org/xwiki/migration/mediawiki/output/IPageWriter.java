@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Stores converted pages in the target path, see {@link IPageSource}
+ * for reading them back.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public interface IPageWriter extends Closeable {
+
+	/**
+	 * Writes a transformed page. May be called from several threads.
+	 *
+	 * @param page
+	 * @throws IOException
+	 */
+	public abstract void writePage(SimPage page) throws IOException;
+
+	/**
+	 * Where to put a downloaded attachment, so the writer (and later
+	 * the {@link IPageSource}) finds it.
+	 *
+	 * @param page
+	 * @param filename the XWiki conform file name
+	 * @return the attachment file
+	 */
+	public abstract File getAttachment(SimPage page, String filename);
+
+	/**
+	 * Flushes all pages and writes the summary files.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public abstract void close() throws IOException;
+
+}
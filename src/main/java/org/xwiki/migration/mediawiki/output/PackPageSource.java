@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.migration.mediawiki.xmldump.IPageHandler;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Reads the pages written by the {@link PackPageWriter}, following the index.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class PackPageSource implements IPageSource {
+
+	private final File targetpath;
+	private final File attachments;
+	private RandomAccessFile segment = null;
+	private int segmentnr = -1;
+
+	/**
+	 * @param cfg
+	 */
+	public PackPageSource(Config cfg) {
+		this.targetpath = new File(cfg.getTargetPath());
+		this.attachments = new File(targetpath, cfg.fileAttachments());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageSource#readPages(org.xwiki.migration.mediawiki.xmldump.IPageHandler)
+	 */
+	@Override
+	public void readPages(IPageHandler handler) throws Exception {
+		final DataInputStream index = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(new File(targetpath, PackRecord.INDEX)), 1 << 16));
+		try {
+			while (true) {
+				final int nr;
+				try {
+					nr = index.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				final long offset = index.readLong();
+				final int length = index.readInt();
+				handler.handlePage(readPage(nr, offset, length));
+			}
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * @param nr segment number
+	 * @param offset
+	 * @param length
+	 * @return the page
+	 * @throws IOException
+	 */
+	private SimPage readPage(int nr, long offset, int length) throws IOException {
+		if (nr != segmentnr) {
+			close();
+			segment = new RandomAccessFile(new File(targetpath, PackRecord.segmentName(nr)), "r");
+			segmentnr = nr;
+		}
+		final byte[] record = new byte[length];
+		segment.seek(offset);
+		segment.readFully(record);
+		return PackRecord.decode(record);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageSource#getAttachment(org.xwiki.migration.mediawiki.xmldump.model.SimPage, java.lang.String)
+	 */
+	@Override
+	public File getAttachment(SimPage page, String filename) {
+		return new File(attachments, filename);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (segment != null) {
+			segment.close();
+			segment = null;
+			segmentnr = -1;
+		}
+	}
+}
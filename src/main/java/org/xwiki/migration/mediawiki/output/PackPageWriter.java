@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.text.MessageFormat;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Appends all pages as records to a few large segment files,
+ * see {@link PackRecord} for the format. Instead of a folder
+ * and eight files per page, a page costs a buffered append.
+ *
+ * Attachments are downloaded into one shared folder, since
+ * MediaWiki file names are unique within the whole wiki.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class PackPageWriter implements IPageWriter {
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final Config cfg;
+	private final File targetpath;
+	private final long segmentsize;
+	private final Set<String> wgetcmds = new LinkedHashSet<String>();
+	private final DataOutputStream index;
+	private OutputStream segment = null;
+	private int segmentnr = -1;
+	private long position = 0;
+
+	private final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+		@Override
+		protected ByteArrayOutputStream initialValue() {
+			return new ByteArrayOutputStream(64 << 10);
+		}
+	};
+
+	/**
+	 * @param cfg
+	 * @throws IOException
+	 */
+	public PackPageWriter(Config cfg) throws IOException {
+		this.cfg = cfg;
+		this.targetpath = new File(cfg.getTargetPath());
+		this.segmentsize = cfg.getTargetPackSegmentSize();
+		this.index = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(targetpath, PackRecord.INDEX)), 1 << 16));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#writePage(org.xwiki.migration.mediawiki.xmldump.model.SimPage)
+	 */
+	@Override
+	public void writePage(SimPage page) throws IOException {
+		// encode outside the lock, only the append is serialized
+		final byte[] record = PackRecord.encode(page, buffers.get());
+		synchronized (this) {
+			if (segment == null || (position > 0 && position + record.length > segmentsize)) {
+				nextSegment();
+			}
+			index.writeInt(segmentnr);
+			index.writeLong(position);
+			index.writeInt(record.length);
+			segment.write(record);
+			position += record.length;
+			for (String f : page.getFiles()) {
+				wgetcmds.add(MessageFormat.format(cfg.getSourceDownloadURL(), f, XWikiSerializer2.clearName(f)));
+			}
+		}
+	}
+
+	private void nextSegment() throws IOException {
+		if (segment != null) {
+			segment.close();
+		}
+		segmentnr++;
+		segment = new BufferedOutputStream(new FileOutputStream(
+				new File(targetpath, PackRecord.segmentName(segmentnr))), BUFFER_SIZE);
+		position = 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#getAttachment(org.xwiki.migration.mediawiki.xmldump.model.SimPage, java.lang.String)
+	 */
+	@Override
+	public File getAttachment(SimPage page, String filename) {
+		return new File(new File(targetpath, cfg.fileAttachments()), filename);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (segment != null) {
+			segment.close();
+			segment = null;
+		}
+		index.close();
+		writeWgetFile();
+	}
+
+	/**
+	 * All downloads go to the shared attachment folder.
+	 *
+	 * @throws IOException
+	 */
+	private void writeWgetFile() throws IOException {
+		if (wgetcmds.isEmpty()) {
+			return;
+		}
+		final File attachments = new File(targetpath, cfg.fileAttachments()).getAbsoluteFile();
+		attachments.mkdirs();
+		final OutputStreamWriter osw = new OutputStreamWriter(
+				new FileOutputStream(new File(targetpath, cfg.fileWget())), "UTF-8");
+		// X:
+		osw.write(attachments.getPath().substring(0, 2) + FolderPageWriter.NL);
+		osw.write("CD " + attachments.getPath() + FolderPageWriter.NL);
+		for (String cmd : wgetcmds) {
+			osw.write(cmd + FolderPageWriter.NL);
+		}
+		osw.close();
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.text.MessageFormat;
+import java.util.Date;
+
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * The binary page record of the pack format.
+ *
+ * A pack consists of segment files, holding the records one after the other,
+ * and an index with one entry per record: segment number (int),
+ * offset (long) and length (int). A record holds name space, title, text,
+ * original, revision (long), user, the categories and the file names.
+ * Strings are stored as byte length (int, -1 for null) and UTF-8 bytes.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+class PackRecord {
+
+	static final String INDEX = "pages.idx";
+	static final String SEGMENT = "pages-{0,number,00000}.pack";
+	static final int INDEX_ENTRY_SIZE = 4 + 8 + 4;
+	static final int VERSION = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private PackRecord() {
+	}
+
+	/**
+	 * @param segment
+	 * @return the file name of the segment
+	 */
+	static String segmentName(int segment) {
+		return MessageFormat.format(SEGMENT, Integer.valueOf(segment));
+	}
+
+	/**
+	 * @param page
+	 * @param buffer reusable buffer
+	 * @return the record
+	 * @throws IOException
+	 */
+	static byte[] encode(SimPage page, ByteArrayOutputStream buffer) throws IOException {
+		buffer.reset();
+		final DataOutputStream out = new DataOutputStream(buffer);
+		out.writeByte(VERSION);
+		writeString(out, page.getNamespace());
+		writeString(out, page.getTitle());
+		writeString(out, page.getText());
+		writeString(out, page.getOriginal());
+		out.writeLong(page.getRevision() != null ? page.getRevision().getTime() : -1);
+		writeString(out, page.getUsername());
+		final String[] categories = page.getCategories();
+		out.writeInt(categories.length);
+		for (String category : categories) {
+			writeString(out, category);
+		}
+		final String[] files = page.getFiles();
+		out.writeInt(files.length);
+		for (String file : files) {
+			writeString(out, XWikiSerializer2.clearName(file));
+		}
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	/**
+	 * @param record
+	 * @return the page
+	 * @throws IOException
+	 */
+	static SimPage decode(byte[] record) throws IOException {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		final int version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("unknown pack record version " + version);
+		}
+		final SimPage page = new SimPage();
+		page.setNamespace(readString(in));
+		page.setTitle(readString(in));
+		page.setText(readString(in));
+		page.setOriginal(readString(in));
+		final long revision = in.readLong();
+		if (revision >= 0) {
+			page.setRevision(new Date(revision));
+		}
+		page.setUsername(readString(in));
+		for (int i = in.readInt(); i > 0; i--) {
+			page.addCategory(readString(in));
+		}
+		for (int i = in.readInt(); i > 0; i--) {
+			page.addFile(readString(in));
+		}
+		return page;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else {
+			final byte[] bytes = s.getBytes(UTF8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		final int len = in.readInt();
+		if (len < 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[len];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.migration.mediawiki.xmldump.IPageHandler;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Hands the converted pages directly to the uploader through a
+ * bounded queue, thus the pages are not written to and read back from
+ * the target path. The converter writes into {@link #getWriter()} and
+ * blocks, if the uploader falls behind.
+ *
+ * Optionally the pages are also written by an audit writer. Attachments
+ * go where the audit writer puts them, otherwise into one shared folder
+ * like {@link PackPageWriter} does.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class QueuePageSource implements IPageSource {
+
+	/** marks the end of the pages */
+	private static final SimPage END = new SimPage();
+
+	private final BlockingQueue<SimPage> queue;
+	private final IPageWriter audit;
+	private final File attachments;
+	private final QueueWriter writer = new QueueWriter();
+	private volatile boolean closed = false;
+	private volatile Exception failure = null;
+
+	/**
+	 * @param cfg
+	 * @param audit writes the pages in addition, may be null
+	 */
+	public QueuePageSource(Config cfg, IPageWriter audit) {
+		this.queue = new ArrayBlockingQueue<SimPage>(Math.max(1, cfg.getPipelineQueueSize()));
+		this.audit = audit;
+		this.attachments = new File(cfg.getTargetPath(), cfg.fileAttachments());
+	}
+
+	/**
+	 * @return the writer for the converter, see {@link #finish(Exception)}
+	 */
+	public IPageWriter getWriter() {
+		return writer;
+	}
+
+	/**
+	 * Ends the pages, after the converter has closed the writer or failed.
+	 * The reader throws the failure, the pages not yet read are dropped.
+	 *
+	 * @param e the failure of the conversion, null if it succeeded
+	 * @throws IOException if the reader has stopped
+	 */
+	public void finish(Exception e) throws IOException {
+		if (e == null) {
+			writer.put(END);
+			return;
+		}
+		failure = e;
+		queue.clear();
+		queue.offer(END);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageSource#readPages(org.xwiki.migration.mediawiki.xmldump.IPageHandler)
+	 */
+	@Override
+	public void readPages(IPageHandler handler) throws Exception {
+		for (SimPage page = queue.take(); page != END; page = queue.take()) {
+			handler.handlePage(page);
+		}
+		if (failure != null) {
+			throw new IllegalStateException("conversion failed", failure);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageSource#getAttachment(org.xwiki.migration.mediawiki.xmldump.model.SimPage, java.lang.String)
+	 */
+	@Override
+	public File getAttachment(SimPage page, String filename) {
+		if (audit != null) {
+			return audit.getAttachment(page, filename);
+		}
+		return new File(attachments, filename);
+	}
+
+	/**
+	 * Stops reading, a writer waiting for room in the queue fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+	}
+
+	/**
+	 * Puts the pages into the queue.
+	 */
+	private class QueueWriter implements IPageWriter {
+
+		/* (non-Javadoc)
+		 * @see org.xwiki.migration.mediawiki.output.IPageWriter#writePage(org.xwiki.migration.mediawiki.xmldump.model.SimPage)
+		 */
+		@Override
+		public void writePage(SimPage page) throws IOException {
+			if (audit != null) {
+				audit.writePage(page);
+			}
+			for (String filename : page.getFiles()) {
+				// the attachments are stored under the cleared names, like FolderPageWriter lists them
+				final String name = XWikiSerializer2.clearName(filename);
+				if (!name.equals(filename)) {
+					page.removeFile(filename);
+					page.addFile(name);
+				}
+			}
+			put(page);
+		}
+
+		/* (non-Javadoc)
+		 * @see org.xwiki.migration.mediawiki.output.IPageWriter#getAttachment(org.xwiki.migration.mediawiki.xmldump.model.SimPage, java.lang.String)
+		 */
+		@Override
+		public File getAttachment(SimPage page, String filename) {
+			return QueuePageSource.this.getAttachment(page, filename);
+		}
+
+		/**
+		 * Closes the audit writer, the pages end with {@link QueuePageSource#finish(Exception)}.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (audit != null) {
+				audit.close();
+			}
+		}
+
+		/**
+		 * Blocks until there is room in the queue.
+		 *
+		 * @param page
+		 * @throws IOException if the reader has stopped
+		 */
+		private void put(SimPage page) throws IOException {
+			try {
+				while (!queue.offer(page, 1, TimeUnit.SECONDS)) {
+					if (closed) {
+						throw new IOException("upload has stopped");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for the upload");
+			}
+		}
+	}
+}
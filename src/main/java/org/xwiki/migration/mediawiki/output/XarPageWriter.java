@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.output;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Writes all pages into one XWiki archive (XAR), which can be imported
+ * at once by XWiki. Each page becomes an XML document with its tags,
+ * the import comment, the original text and all attachments found in
+ * the shared attachment folder. The archive is streamed, only the
+ * document names are kept in memory for the package.xml at the end.
+ *
+ * If two titles result in the same document name, the first one wins.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class XarPageWriter implements IPageWriter {
+
+	private static final String ORIGINAL_FILENAME = "mediawiki_original.txt";
+	private static final String NL = "\n";
+
+	private final Config cfg;
+	private final File attachments;
+	private final ZipOutputStream zip;
+	private final Writer writer;
+	private final List<String> documents = new ArrayList<String>();
+	private final Set<String> names = new HashSet<String>();
+	private final Set<String> wgetcmds = new LinkedHashSet<String>();
+
+	/**
+	 * @param cfg
+	 * @throws IOException
+	 */
+	public XarPageWriter(Config cfg) throws IOException {
+		this.cfg = cfg;
+		final File targetpath = new File(cfg.getTargetPath());
+		this.attachments = new File(targetpath, cfg.fileAttachments());
+		this.zip = new ZipOutputStream(new BufferedOutputStream(
+				new FileOutputStream(new File(targetpath, cfg.fileXar())), 1 << 20));
+		this.writer = new OutputStreamWriter(zip, "UTF-8");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#writePage(org.xwiki.migration.mediawiki.xmldump.model.SimPage)
+	 */
+	@Override
+	public synchronized void writePage(SimPage page) throws IOException {
+		final String space = page.getNamespace();
+		final String name = XWikiSerializer2.clearName(page.getTitle(), true, true);
+		final String fullname = space + "." + name;
+		if (!names.add(fullname)) {
+			return;
+		}
+		documents.add(fullname);
+		for (String f : page.getFiles()) {
+			wgetcmds.add(MessageFormat.format(cfg.getSourceDownloadURL(), f, XWikiSerializer2.clearName(f)));
+		}
+
+		zip.putNextEntry(new ZipEntry(space + "/" + name + ".xml"));
+		final String user = userReference(page.getUsername());
+		final String date = page.getRevision() != null ? Long.toString(page.getRevision().getTime()) : "";
+		writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + NL);
+		writer.write("<xwikidoc>" + NL);
+		element("web", space);
+		element("name", name);
+		element("language", "");
+		element("defaultLanguage", "");
+		element("translation", "0");
+		element("parent", space + ".WebHome");
+		element("creator", user);
+		element("author", user);
+		element("contentAuthor", user);
+		element("creationDate", date);
+		element("date", date);
+		element("contentUpdateDate", date);
+		element("version", "1.1");
+		element("title", page.getTitle());
+		element("template", "");
+		element("defaultTemplate", "");
+		element("validationScript", "");
+		element("comment", "");
+		element("minorEdit", "false");
+		element("syntaxId", "xwiki/2.0");
+		element("hidden", "false");
+		for (String f : page.getFiles()) {
+			final File file = new File(attachments, XWikiSerializer2.clearName(f));
+			if (file.canRead() && file.length() > 0) {
+				writeAttachment(XWikiSerializer2.clearName(f), file, null, user, date);
+			}
+		}
+		if (cfg.isAttachOriginal() && page.getOriginal() != null && page.getOriginal().length() > 0) {
+			writeAttachment(ORIGINAL_FILENAME, null, page.getOriginal().getBytes("UTF-8"), user, date);
+		}
+		if (page.sizeCategory() > 0) {
+			writeTags(fullname, page.getCategories());
+		}
+		if (cfg.isCreateXwikiComment()) {
+			writeComment(fullname, page, user, date);
+		}
+		element("content", page.getText());
+		writer.write("</xwikidoc>" + NL);
+		writer.flush();
+		zip.closeEntry();
+	}
+
+	/**
+	 * Either file or content must be given.
+	 * The content is Base64 encoded while streaming.
+	 */
+	private void writeAttachment(String filename, File file, byte[] content, String user, String date) throws IOException {
+		final long size = file != null ? file.length() : content.length;
+		writer.write("<attachment>" + NL);
+		element("filename", filename);
+		element("filesize", Long.toString(size));
+		element("author", user);
+		element("date", date);
+		element("version", "1.1");
+		element("comment", "");
+		writer.write("<content>");
+		writer.flush();
+		// don't let the encoder close the zip stream
+		final OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(zip) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		});
+		if (file != null) {
+			final InputStream in = new FileInputStream(file);
+			try {
+				final byte[] buffer = new byte[8192];
+				int read = -1;
+				while ((read = in.read(buffer)) > 0) {
+					base64.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			base64.write(content);
+		}
+		base64.close();
+		writer.write("</content>" + NL);
+		writer.write("</attachment>" + NL);
+	}
+
+	private void writeTags(String fullname, String[] tags) throws IOException {
+		writer.write("<object>" + NL);
+		element("name", fullname);
+		element("number", "0");
+		element("className", "XWiki.TagClass");
+		element("guid", UUID.randomUUID().toString());
+		writer.write("<property>" + NL + "<tags>" + NL);
+		for (String tag : tags) {
+			element("value", tag);
+		}
+		writer.write("</tags>" + NL + "</property>" + NL);
+		writer.write("</object>" + NL);
+	}
+
+	private void writeComment(String fullname, SimPage page, String user, String date) throws IOException {
+		final DateFormat dformater = DateFormat.getDateInstance(DateFormat.MEDIUM, Locale.getDefault());
+		final String d = page.getRevision() != null ? dformater.format(page.getRevision()) : "";
+		writer.write("<object>" + NL);
+		element("name", fullname);
+		element("number", "0");
+		element("className", "XWiki.XWikiComments");
+		element("guid", UUID.randomUUID().toString());
+		writer.write("<property>" + NL);
+		element("author", user);
+		writer.write("</property>" + NL + "<property>" + NL);
+		element("comment", MessageFormat.format(cfg.getCommentMessage(), d, page.getUsername()));
+		writer.write("</property>" + NL + "<property>" + NL);
+		element("date", date);
+		writer.write("</property>" + NL);
+		writer.write("</object>" + NL);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#getAttachment(org.xwiki.migration.mediawiki.xmldump.model.SimPage, java.lang.String)
+	 */
+	@Override
+	public File getAttachment(SimPage page, String filename) {
+		return new File(attachments, filename);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.output.IPageWriter#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		zip.putNextEntry(new ZipEntry("package.xml"));
+		writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + NL);
+		writer.write("<package>" + NL + "<infos>" + NL);
+		element("name", "MediaWiki");
+		element("description", "Pages converted from a MediaWiki XML dump");
+		element("licence", "");
+		element("author", userReference(cfg.getXWikiUser()));
+		element("version", "");
+		element("backupPack", "false");
+		element("preserveVersion", "false");
+		writer.write("</infos>" + NL + "<files>" + NL);
+		for (String document : documents) {
+			writer.write("<file defaultAction=\"0\" language=\"\">" + escape(document) + "</file>" + NL);
+		}
+		writer.write("</files>" + NL + "</package>" + NL);
+		writer.flush();
+		zip.closeEntry();
+		writer.close();
+		writeWgetFile();
+	}
+
+	/**
+	 * Attachments, which are not downloaded yet, are missing in the archive.
+	 * Run the download commands and convert again to include them.
+	 *
+	 * @throws IOException
+	 */
+	private void writeWgetFile() throws IOException {
+		if (wgetcmds.isEmpty()) {
+			return;
+		}
+		final File dir = attachments.getAbsoluteFile();
+		dir.mkdirs();
+		final OutputStreamWriter osw = new OutputStreamWriter(
+				new FileOutputStream(new File(cfg.getTargetPath(), cfg.fileWget())), "UTF-8");
+		// X:
+		osw.write(dir.getPath().substring(0, 2) + FolderPageWriter.NL);
+		osw.write("CD " + dir.getPath() + FolderPageWriter.NL);
+		for (String cmd : wgetcmds) {
+			osw.write(cmd + FolderPageWriter.NL);
+		}
+		osw.close();
+	}
+
+	private void element(String name, String value) throws IOException {
+		writer.write("<" + name + ">");
+		writer.write(escape(value));
+		writer.write("</" + name + ">" + NL);
+	}
+
+	private static String userReference(String username) {
+		if (username == null || username.trim().length() == 0) {
+			return "XWiki.XWikiGuest";
+		}
+		return "XWiki." + XWikiSerializer2.clearName(username, true, true);
+	}
+
+	/**
+	 * Escapes XML markup and drops characters, which are not allowed in XML.
+	 *
+	 * @param s
+	 * @return
+	 */
+	static String escape(String s) {
+		if (s == null) {
+			return "";
+		}
+		StringBuilder sb = null;
+		for (int i = 0, len = s.length(); i < len; i++) {
+			final char c = s.charAt(i);
+			String replacement = null;
+			switch (c) {
+			case '&': replacement = "&amp;"; break;
+			case '<': replacement = "&lt;"; break;
+			case '>': replacement = "&gt;"; break;
+			case '"': replacement = "&quot;"; break;
+			default:
+				if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') {
+					replacement = "";
+				}
+			}
+			if (replacement != null) {
+				if (sb == null) {
+					sb = new StringBuilder(len + 64);
+					sb.append(s, 0, i);
+				}
+				sb.append(replacement);
+			} else if (sb != null) {
+				sb.append(c);
+			}
+		}
+		return sb == null ? s : sb.toString();
+	}
+}
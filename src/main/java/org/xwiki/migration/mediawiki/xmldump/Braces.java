@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Finds the {{templates}} and {{{parameters}}} of one text.
+ *
+ * A scan for the closing braces only depends on its position and on what
+ * it looks for, so the end found is remembered for each position passed.
+ * Any later scan, which reaches such a position, stops there. Thus each
+ * position is scanned at most once per kind, unclosed braces included.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+class Braces {
+
+	private static final int UNKNOWN = -2;
+
+	private final String text;
+	/** end of the scan from a position for templates [0] and parameters [1], or UNKNOWN */
+	private final int[][] ends = new int[2][];
+
+	/**
+	 * @param text
+	 */
+	Braces(String text) {
+		this.text = text;
+	}
+
+	/**
+	 * @param start position of the opening braces
+	 * @return the position after the closing braces, -1 if not closed
+	 */
+	int close(int start) {
+		final boolean param = text.startsWith("{{{", start);
+		return findClose(start + (param ? 3 : 2), param);
+	}
+
+	/**
+	 * @param c
+	 * @param from
+	 * @return the first position of c, which is not within nested braces or links, or -1
+	 */
+	int indexOfTopLevel(char c, int from) {
+		int links = 0;
+		int i = from;
+		final int len = text.length();
+		while (i < len) {
+			final char ch = text.charAt(i);
+			if (ch == '{' && text.startsWith("{{", i)) {
+				final int end = close(i);
+				i = end < 0 ? i + 2 : end;
+				continue;
+			}
+			if (ch == '[' && text.startsWith("[[", i)) {
+				links++;
+				i += 2;
+				continue;
+			}
+			if (ch == ']' && links > 0 && text.startsWith("]]", i)) {
+				links--;
+				i += 2;
+				continue;
+			}
+			if (ch == c && links == 0) {
+				return i;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * Scans like a recursive descent, but keeps the nested scans on a
+	 * stack of its own, thus deep nesting needs no limit.
+	 *
+	 * @param from the position after the opening braces
+	 * @param param true for a parameter "}}}", false for a template "}}"
+	 * @return the position after the closing braces, -1 if not closed
+	 */
+	private int findClose(int from, boolean param) {
+		final int len = text.length();
+		final ArrayDeque<Scan> scans = new ArrayDeque<Scan>();
+		Scan scan = new Scan(from, param);
+		while (true) {
+			final int[] known = ends(scan.param);
+			int result = -1;
+			int i = scan.position;
+			Scan nested = null;
+			while (i < len) {
+				if (known[i] != UNKNOWN) {
+					result = known[i];
+					break;
+				}
+				scan.pass(i);
+				final char c = text.charAt(i);
+				if (c == '{' && text.startsWith("{{", i)) {
+					final boolean nestedparam = text.startsWith("{{{", i);
+					nested = new Scan(i + (nestedparam ? 3 : 2), nestedparam);
+					break;
+				} else if (c == '}' && scan.param && text.startsWith("}}}", i)) {
+					result = i + 3;
+					break;
+				} else if (c == '}' && !scan.param && text.startsWith("}}", i)) {
+					result = i + 2;
+					break;
+				} else {
+					i++;
+				}
+			}
+			if (nested != null) {
+				scan.position = i;
+				scans.push(scan);
+				scan = nested;
+				continue;
+			}
+			for (int k = 0; k < scan.count; k++) {
+				known[scan.passed[k]] = result;
+			}
+			if (scans.isEmpty()) {
+				return result;
+			}
+			// continue the enclosing scan after the nested braces, or after their opening
+			scan = scans.pop();
+			scan.position = result < 0 ? scan.position + 2 : result;
+		}
+	}
+
+	private int[] ends(boolean param) {
+		final int kind = param ? 1 : 0;
+		if (ends[kind] == null) {
+			ends[kind] = new int[text.length()];
+			Arrays.fill(ends[kind], UNKNOWN);
+		}
+		return ends[kind];
+	}
+
+	/**
+	 * A scan for the closing braces, waiting for a nested one
+	 */
+	private static class Scan {
+		final boolean param;
+		/** where to go on */
+		int position;
+		/** the positions passed so far */
+		int[] passed = new int[8];
+		int count = 0;
+
+		Scan(int position, boolean param) {
+			this.position = position;
+			this.param = param;
+		}
+
+		void pass(int i) {
+			if (count == passed.length) {
+				passed = Arrays.copyOf(passed, count * 2);
+			}
+			passed[count++] = i;
+		}
+	}
+}
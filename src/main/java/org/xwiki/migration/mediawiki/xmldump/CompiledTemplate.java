@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
+
+/**
+ * A {@link SimTemplateDefinition} text, compiled once into literal segments
+ * and parameter slots like {{{1}}}, {{{name}}} or {{{name|default}}}.
+ * Expanding the template is a single append pass over the segments.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class CompiledTemplate {
+
+	private final List<Object> segments = new ArrayList<Object>();
+
+	private CompiledTemplate() {
+	}
+
+	/**
+	 * @param text the template definition
+	 * @return the compiled form
+	 */
+	public static CompiledTemplate compile(String text) {
+		final CompiledTemplate result = new CompiledTemplate();
+		final Braces braces = new Braces(text);
+		int copied = 0;
+		int start = text.indexOf("{{{");
+		while (start >= 0) {
+			final int end = braces.close(start);
+			if (end < 0) {
+				start = text.indexOf("{{{", start + 1);
+				continue;
+			}
+			if (start > copied) {
+				result.segments.add(text.substring(copied, start));
+			}
+			final String slot = text.substring(start + 3, end - 3);
+			final int bar = new Braces(slot).indexOfTopLevel('|', 0);
+			if (bar < 0) {
+				result.segments.add(new Slot(slot.trim(), null, text.substring(start, end)));
+			} else {
+				result.segments.add(new Slot(slot.substring(0, bar).trim(),
+						compile(slot.substring(bar + 1)), text.substring(start, end)));
+			}
+			copied = end;
+			start = text.indexOf("{{{", copied);
+		}
+		if (copied < text.length()) {
+			result.segments.add(text.substring(copied));
+		}
+		return result;
+	}
+
+	/**
+	 * Unknown parameters without default value are kept as they are.
+	 *
+	 * @param params named and numbered parameters of the invocation
+	 * @param out
+	 */
+	public void expand(Map<String, String> params, StringBuilder out) {
+		for (Object segment : segments) {
+			if (segment instanceof Slot) {
+				final Slot slot = (Slot) segment;
+				final String value = params.get(slot.name);
+				if (value != null) {
+					out.append(value);
+				} else if (slot.fallback != null) {
+					slot.fallback.expand(params, out);
+				} else {
+					out.append(slot.source);
+				}
+			} else {
+				out.append((String) segment);
+			}
+		}
+	}
+
+	/**
+	 * A parameter slot
+	 */
+	private static class Slot {
+		final String name;
+		final CompiledTemplate fallback;
+		final String source;
+
+		Slot(String name, CompiledTemplate fallback, String source) {
+			this.name = name;
+			this.fallback = fallback;
+			this.source = source;
+		}
+	}
+}
@@ -15,20 +15,27 @@
  */
 package org.xwiki.migration.mediawiki.xmldump;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -46,13 +53,15 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
  * <strong>Features</strong>
  * <ul>
  * <li>Able to parse MediaWiki XML dump files.</li>
- * <li>Resolves Templates within page texts.</li>
+ * <li>Reads gz and bz2 compressed dumps directly, multistream bz2 dumps
+ * with their index file on several threads.</li>
+ * <li>Resolves Templates within page texts, including nested templates.</li>
  * </ul>
  *
  * <strong>Limits:</strong>
  * <ul>
  * <li>Does NOT support multiple revisions of articles!</li>
- * <li>Does NOT support nested templates!</li>
+ * <li>Nested templates are expanded up to {@link TemplateResolver#MAX_DEPTH} levels.</li>
  * </ul>
  * 
  * <strong>Usage:</strong>
@@ -62,6 +71,15 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
  * <li>call {@link #resolveTemplates()} OPTIONAL, but recommended</li>
  * <li>call {@link #getPages()}</li>
  * </ol>
+ *
+ * <strong>Streaming usage (for large dumps):</strong>
+ * <ol>
+ * <li>call {@link #scanTemplates(String)}</li>
+ * <li>call {@link #streamPages(String, IPageHandler)}, the handler should call
+ * {@link #filterPage(SimPage, IPreTransformFilter...)} and {@link #resolveTemplates(SimPage)}</li>
+ * </ol>
+ * Uncompressed dumps can also be parsed on several cores, by using
+ * {@link #pageSpliterator(String, int)} instead of {@link #streamPages(String, IPageHandler)}.
  * 
  * NOT A REAL MAIN CLASS but for testing ;-)
  * 
@@ -70,7 +88,12 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
 public class DumpParser {
 
 	private List<SimNamespace> templates;
+	private SimNamespace[] templatearray;
+	private Map<String, SimNamespace> templateindex;
+	private TemplateResolver resolver;
 	private List<SimPage> pages;
+	private String indexfile;
+	private int decoderthreads = Runtime.getRuntime().availableProcessors();
 	private final Logger logger = Logger.getLogger(this.getClass().getName());
 
 	/**
@@ -97,69 +120,36 @@ public class DumpParser {
 			throw new IllegalStateException("Nothing parsed yet. Parse an XML dump file first!");
 		}
 		for (SimPage page : pages) {
-			String text = page.getText();
-			for (SimNamespace template : templates) {
-				for (int i=0, len=template.sizeDefinitions(); i<len; i++) {
-					final SimTemplateDefinition td = template.get(i);
-					text = replaceTemplate(text, td);
-				}
-			}
-			page.setText(text);
+			resolveTemplates(page);
 		}
 	}
 
 	/**
-	 * @param source
-	 * @param td
-	 * @return
+	 * Resolves the templates within a single page.
+	 *
+	 * @param page
+	 * @throws IllegalStateException
 	 */
-	private String replaceTemplate (final String source, SimTemplateDefinition td) {
-		// "\{\{(?:Template:)?XXX[^}]*\}\}"
-		// assuming that templates/macros can be used with or without name space,
-		// means: {{Template:foo|param1}} is the same like {{foo|param1}}
-		StringBuilder text = new StringBuilder(source);
-		String tname = td.getTitle();
-		if (tname.toLowerCase().startsWith("template:")) {
-			tname = tname.substring("template:".length());
+	public void resolveTemplates(SimPage page) {
+		if (templates == null) {
+			throw new IllegalStateException("No templates read yet. Parse or scan an XML dump file first!");
 		}
-		String regex = "\\{\\{(?:Template:)?"+ tname +"[^}]*\\}\\}";
-		final Pattern p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-		for (Matcher m = p.matcher(text); m.find(); m = p.matcher(text)) {
-			int start = m.start();
-			int end = m.end();
-			String reference = text.substring(start, end);
-			String t = resolveTemplateParameters(reference, td.getText());
-			text = text.replace(start, end, t);
-		}
-		return text.toString();
+		page.setText(getResolver().resolve(page.getText()));
 	}
-	
+
 	/**
-	 * @param reference
-	 * @param definition
+	 * The index is built on first use, after the pre filters
+	 * had their chance to rename the templates.
+	 *
 	 * @return
 	 */
-	private String resolveTemplateParameters(String reference, String definition) {
-		String result = definition;
-		if (reference.length() > 4 && reference.startsWith("{{") && reference.endsWith("}}")) {
-            // template with named and unnamed parameters
-            final String macro = reference.substring(2, reference.length()-2);
-            String[] parts = macro.split("[|]");
-            // String macroname = parts[0];
-            for (int i=1; i<parts.length; i++) {
-                String key = Integer.toString(i);
-                String value = parts[i];
-                int equidx = parts[i].indexOf('=');
-                if (equidx > 0) {
-                    key = parts[i].substring(0, equidx);
-                    value = parts[i].substring(equidx+1);
-                }
-                result = result.replaceAll("\\{\\{\\{"+key+"\\}\\}\\}", value);
-            }
+	private synchronized TemplateResolver getResolver() {
+		if (resolver == null) {
+			resolver = new TemplateResolver(templates);
 		}
-		return result;
+		return resolver;
 	}
-	
+
 	/**
 	 * @return
 	 * @throws IllegalStateException
@@ -180,22 +170,180 @@ public class DumpParser {
 	 * @throws IOException
 	 */
 	public void parse(String filename) throws ParserConfigurationException, SAXException, IOException {
-		File file = new File(filename);
 		DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
 		DocumentBuilder db = dbf.newDocumentBuilder();
-		Document doc = db.parse(file);
+		final InputStream in = openInput(filename);
+		Document doc;
+		try {
+			doc = db.parse(in);
+		} finally {
+			in.close();
+		}
 		final Element docelem = doc.getDocumentElement();
-		templates = extractTemplates(docelem);
+		final List<SimNamespace> namespaces = extractNamespaces(docelem);
+		pages = extractPages(docelem, indexNamespaces(namespaces));
+		removeEmptyNamespaces(namespaces);
+		setTemplates(namespaces);
 		logger.fine("read " + templates.size() + " template name space.");
 		if (logger.isLoggable(Level.FINE)) {
 			for (SimNamespace t : templates) {
 				logger.fine(" > Template name space " + t.getNamespace() + " contains " + t.sizeDefinitions() + " templates");
 			}
 		}
-		pages = extractAllPages(docelem, templates);
 		logger.fine("read " + pages.size() + " pages.");
 	}
 
+	/**
+	 * Reads only the name spaces and template definitions of a MediaWiki XML dump file.
+	 * The pages are not kept in memory, use {@link #streamPages(String, IPageHandler)}
+	 * to process them afterwards.
+	 *
+	 * @param filename
+	 * @throws XMLStreamException
+	 * @throws IOException
+	 */
+	public void scanTemplates(String filename) throws XMLStreamException, IOException {
+		final DumpStreamReader reader = openStream(filename);
+		try {
+			final List<SimNamespace> result = reader.readNamespaces();
+			final Map<String, SimNamespace> index = indexNamespaces(result);
+			for (String title = reader.nextTitle(); title != null; title = reader.nextTitle()) {
+				final SimNamespace t = findNamespace(index, title);
+				if (t != null) {
+					final SimPage p = reader.readPage(title);
+					final SimTemplateDefinition td = new SimTemplateDefinition();
+					td.setText(p.getText());
+					td.setTitle(title);
+					t.add(td);
+				} else {
+					reader.skipPage();
+				}
+			}
+			removeEmptyNamespaces(result);
+			setTemplates(result);
+		} finally {
+			reader.close();
+		}
+		logger.fine("read " + templates.size() + " template name space.");
+	}
+
+	/**
+	 * Streams all pages (no templates) of a MediaWiki XML dump file to the handler.
+	 * Only one page at a time is held in memory.
+	 *
+	 * @param filename
+	 * @param handler
+	 * @throws IllegalStateException
+	 * @throws Exception
+	 */
+	public void streamPages(String filename, IPageHandler handler) throws Exception {
+		if (templates == null) {
+			throw new IllegalStateException("No templates read yet. Scan the XML dump file first!");
+		}
+		final DumpStreamReader reader = openStream(filename);
+		int count = 0;
+		try {
+			reader.readNamespaces();
+			for (String title = reader.nextTitle(); title != null; title = reader.nextTitle()) {
+				if (findNamespace(templateindex, title) != null) {
+					reader.skipPage();
+				} else {
+					handler.handlePage(reader.readPage(title));
+					count++;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		logger.fine("streamed " + count + " pages.");
+	}
+
+	/**
+	 * Splits an uncompressed dump into byte ranges, aligned to &lt;page&gt; elements,
+	 * which can be parsed in parallel, for example:
+	 * <code>StreamSupport.stream(dparser.pageSpliterator(file, 16), true)</code>.
+	 * Like {@link #streamPages(String, IPageHandler)}, templates are skipped.
+	 * The caller has to close the returned spliterator.
+	 *
+	 * @param filename
+	 * @param shards number of byte ranges, should be a multiple of the number of cores
+	 * @return the pages of all shards
+	 * @throws IllegalStateException
+	 * @throws IOException
+	 */
+	public DumpSpliterator pageSpliterator(String filename, int shards) throws IOException {
+		if (templates == null) {
+			throw new IllegalStateException("No templates read yet. Scan the XML dump file first!");
+		}
+		final RandomAccessFile file = new RandomAccessFile(filename, "r");
+		try {
+			return new DumpSpliterator(file, Math.max(1, shards), templateindex);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private DumpStreamReader openStream(String filename) throws XMLStreamException, IOException {
+		return new DumpStreamReader(openInput(filename));
+	}
+
+	/**
+	 * Opens the dump, decompressing '.gz' and '.bz2' files on the fly.
+	 * Multistream bz2 dumps are decompressed in parallel, if the index file is found.
+	 *
+	 * @param filename
+	 * @return the plain XML stream
+	 * @throws IOException
+	 */
+	private InputStream openInput(String filename) throws IOException {
+		final File file = new File(filename);
+		final String name = file.getName().toLowerCase();
+		if (name.endsWith(".bz2")) {
+			final File index = findIndexFile(file);
+			if (index != null && decoderthreads > 1) {
+				logger.fine("decompressing " + filename + " with " + decoderthreads + " threads, using index " + index);
+				return new MultistreamBzip2InputStream(file, index, decoderthreads);
+			}
+			return new BZip2CompressorInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), true);
+		}
+		if (name.endsWith(".gz")) {
+			return new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), 1 << 16);
+		}
+		return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+	}
+
+	/**
+	 * MediaWiki names the index of 'foo-multistream.xml.bz2'
+	 * 'foo-multistream-index.txt.bz2'.
+	 *
+	 * @param dump
+	 * @return the configured or the conventionally named index file, null if none exists
+	 */
+	private File findIndexFile(File dump) {
+		if (indexfile != null && indexfile.length() > 0) {
+			final File index = new File(indexfile);
+			return index.exists() ? index : null;
+		}
+		final String name = dump.getName();
+		if (name.endsWith(".xml.bz2")) {
+			final File index = new File(dump.getParentFile(),
+					name.substring(0, name.length() - ".xml.bz2".length()) + "-index.txt.bz2");
+			if (index.exists()) {
+				return index;
+			}
+		}
+		return null;
+	}
+
+	private void setTemplates(List<SimNamespace> templates) {
+		this.templates = templates;
+		this.templatearray = templates.toArray(new SimNamespace[templates.size()]);
+		this.resolver = null;
+		// index by the original names, filters may rename the name spaces later on
+		this.templateindex = indexNamespaces(templates);
+	}
+
 	/**
 	 * MediaWiki supports localization of template names.
 	 * For example, it's legal to use {{{template:foo}}} or German
@@ -214,41 +362,73 @@ public class DumpParser {
 		if (filters == null || filters.length < 1) {
 			return;
 		}
-		final SimNamespace[] templatearray = templates.toArray(new SimNamespace[templates.size()]);
 		for (SimPage page : pages) {
-			for (IPreTransformFilter filter : filters) {
-				filter.filterPage(page, templatearray);
+			filterPage(page, filters);
+		}
+	}
+
+	/**
+	 * Filters a single page, see {@link #filterPages(IPreTransformFilter...)}.
+	 * Consecutive {@link IWikiTextRule}s are fused into one {@link WikiTextRewriter}.
+	 *
+	 * @param page
+	 * @param filters
+	 * @throws IllegalStateException
+	 */
+	public void filterPage(SimPage page, IPreTransformFilter... filters) {
+		if (templates == null) {
+			throw new IllegalStateException("No templates read yet. Parse or scan an XML dump file first!");
+		}
+		if (filters == null) {
+			return;
+		}
+		// consecutive rules are applied within a single scan
+		int i = 0;
+		while (i < filters.length) {
+			int j = i;
+			while (j < filters.length && filters[j] instanceof IWikiTextRule) {
+				j++;
+			}
+			if (j - i > 1) {
+				final IWikiTextRule[] rules = new IWikiTextRule[j - i];
+				System.arraycopy(filters, i, rules, 0, rules.length);
+				new WikiTextRewriter(rules).filterPage(page, templatearray);
+				i = j;
+			} else {
+				filters[i].filterPage(page, templatearray);
+				i++;
 			}
 		}
 	}
 
 	/**
 	 * Returns only pages, no templates ...
+	 * Template definitions are added to their name space,
+	 * within the same pass over all pages.
 	 *
 	 * @param docelem
-	 * @param templates
+	 * @param index see {@link #indexNamespaces(List)}
 	 * @return
 	 */
-	private List<SimPage> extractAllPages(Element docelem, List<SimNamespace> templates) {
+	private List<SimPage> extractPages(Element docelem, Map<String, SimNamespace> index) {
 		final NodeList pages = docelem.getElementsByTagName("page");
 		List<SimPage> result = new ArrayList<SimPage>();
 		for (int i=0, len=pages.getLength(); i<len; i++) {
 			final Element page = (Element) pages.item(i);
-			final SimPage p = new SimPage();
-			p.setTitle(getTitleFromElement(page));
-			p.setText(getTextFromElement(page));
-			p.setOriginal(p.getText());
-			p.setUsername(getUsernameFromElement(page));
-			p.setRevision(getTimestampFromElement(page));
-			// do not add templates !
-			boolean istemplate = false;
-			for (SimNamespace t : templates) {
-				if (p.getTitle().startsWith(t.getNamespace() + ":")) {
-					istemplate = true;
-					break;
-				}
-			}
-			if (!istemplate) {
+			final String title = getTitleFromElement(page);
+			final SimNamespace t = findNamespace(index, title);
+			if (t != null) {
+				final SimTemplateDefinition td = new SimTemplateDefinition();
+				td.setText(getTextFromElement(page));
+				td.setTitle(title);
+				t.add(td);
+			} else {
+				final SimPage p = new SimPage();
+				p.setTitle(title);
+				p.setText(getTextFromElement(page));
+				p.setOriginal(p.getText());
+				p.setUsername(getUsernameFromElement(page));
+				p.setRevision(getTimestampFromElement(page));
 				result.add(p);
 			}
 		}
@@ -256,11 +436,11 @@ public class DumpParser {
 	}
 
 	/**
-	 * Loads all the templates from the dump.
+	 * Loads all the name space declarations from the dump.
 	 *
 	 * @param docelem
 	 */
-	private List<SimNamespace> extractTemplates(Element docelem) {
+	private List<SimNamespace> extractNamespaces(Element docelem) {
 		final NodeList siteinfos = docelem.getElementsByTagName("siteinfo");
 		List<SimNamespace> result = new ArrayList<SimNamespace>();
 		// search for Template declarations
@@ -279,29 +459,49 @@ public class DumpParser {
 				}
 			}
 		}
-		// fill in additional Template definitions (Text)
-		for (SimNamespace t : result) {
-			final NodeList pages = docelem.getElementsByTagName("page");
-			for (int i=0, len=pages.getLength(); i<len; i++) {
-				final Element page = (Element) pages.item(i);
-				final String title = getTitleFromElement(page);
-				if (title != null && title.startsWith(t.getNamespace() + ":")) {
-					final SimTemplateDefinition td = new SimTemplateDefinition();
-					td.setText(getTextFromElement(page));
-					td.setTitle(title);
-					t.add(td);
-				}
+		return result;
+	}
+
+	/**
+	 * @param namespaces
+	 * @return lookup from name space prefix (the title text before the first ':') to its name space
+	 */
+	private static Map<String, SimNamespace> indexNamespaces(List<SimNamespace> namespaces) {
+		final Map<String, SimNamespace> result = new HashMap<String, SimNamespace>();
+		for (SimNamespace t : namespaces) {
+			if (!result.containsKey(t.getNamespace())) {
+				result.put(t.getNamespace(), t);
 			}
 		}
-		// cleanup empty declarations
-		final Iterator<SimNamespace> tit = result.iterator();
+		return result;
+	}
+
+	/**
+	 * @param index see {@link #indexNamespaces(List)}
+	 * @param title
+	 * @return the name space, the title belongs to or null
+	 */
+	static SimNamespace findNamespace(Map<String, SimNamespace> index, String title) {
+		final int colon = title != null ? title.indexOf(':') : -1;
+		if (colon < 0) {
+			return null;
+		}
+		return index.get(title.substring(0, colon));
+	}
+
+	/**
+	 * cleanup empty declarations
+	 *
+	 * @param namespaces
+	 */
+	private static void removeEmptyNamespaces(List<SimNamespace> namespaces) {
+		final Iterator<SimNamespace> tit = namespaces.iterator();
 		while (tit.hasNext()) {
 			SimNamespace t = tit.next();
 			if (t.sizeDefinitions() < 1) {
 				tit.remove();
 			}
 		}
-		return result;
 	}
 
 	/**
@@ -354,4 +554,18 @@ public class DumpParser {
 	public void setLogLevel(Level level) {
 		this.logger.setLevel(level);
 	}
+
+	/**
+	 * @param indexfile the index of a multistream bz2 dump, null or empty for auto detection
+	 */
+	public void setIndexFile(String indexfile) {
+		this.indexfile = indexfile;
+	}
+
+	/**
+	 * @param threads number of threads to decompress multistream bz2 dumps, 1 to disable
+	 */
+	public void setDecoderThreads(int threads) {
+		this.decoderthreads = threads;
+	}
 }
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Splits an uncompressed, memory mapped dump into byte ranges (shards),
+ * which start at a &lt;page&gt; element. Each shard is parsed on its own,
+ * thus a parallel stream over this {@link Spliterator} parses the dump
+ * on all cores.
+ *
+ * Templates are skipped, see {@link DumpParser#pageSpliterator(String, int)}.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class DumpSpliterator implements Spliterator<SimPage>, Closeable {
+
+	private static final byte[] DUMP_START = bytes("<mediawiki>");
+	private static final byte[] PAGE_START = bytes("<page>");
+	private static final byte[] DUMP_END = bytes("</mediawiki>");
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long[] boundaries;
+	private final Map<String, SimNamespace> templateindex;
+	private int next;
+	private int end;
+	private DumpStreamReader reader;
+
+	/**
+	 * @param file the uncompressed dump
+	 * @param shards number of shards to split into
+	 * @param templateindex name spaces to skip
+	 * @throws IOException
+	 */
+	DumpSpliterator(RandomAccessFile file, int shards, Map<String, SimNamespace> templateindex) throws IOException {
+		this(file, computeBoundaries(file.getChannel(), shards), 0, -1, templateindex);
+	}
+
+	private DumpSpliterator(RandomAccessFile file, long[] boundaries, int next, int end, Map<String, SimNamespace> templateindex) {
+		this.file = file;
+		this.channel = file.getChannel();
+		this.boundaries = boundaries;
+		this.next = next;
+		this.end = end < 0 ? boundaries.length - 1 : end;
+		this.templateindex = templateindex;
+	}
+
+	/**
+	 * @param channel
+	 * @param shards
+	 * @return the start positions of all shards, followed by the end of the last shard
+	 * @throws IOException
+	 */
+	private static long[] computeBoundaries(FileChannel channel, int shards) throws IOException {
+		final long size = channel.size();
+		final long first = MappedRangeInputStream.indexOf(channel, PAGE_START, 0, size);
+		if (first < 0) {
+			return new long[] { 0 };
+		}
+		long last = MappedRangeInputStream.lastIndexOf(channel, DUMP_END, size, 1 << 16);
+		if (last < first) {
+			last = size;
+		}
+		final long[] result = new long[shards + 1];
+		int count = 0;
+		result[count++] = first;
+		for (int i = 1; i < shards; i++) {
+			final long approx = first + (last - first) * i / shards;
+			if (approx <= result[count - 1]) {
+				continue;
+			}
+			final long start = MappedRangeInputStream.indexOf(channel, PAGE_START, approx, last);
+			if (start < 0) {
+				break;
+			}
+			if (start > result[count - 1]) {
+				result[count++] = start;
+			}
+		}
+		result[count++] = last;
+		final long[] trimmed = new long[count];
+		System.arraycopy(result, 0, trimmed, 0, count);
+		return trimmed;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Spliterator#tryAdvance(java.util.function.Consumer)
+	 */
+	@Override
+	public boolean tryAdvance(Consumer<? super SimPage> action) {
+		try {
+			while (true) {
+				if (reader == null) {
+					if (next >= end) {
+						return false;
+					}
+					reader = openShard(boundaries[next], boundaries[next + 1]);
+					next++;
+				}
+				final String title = reader.nextTitle();
+				if (title == null) {
+					reader.close();
+					reader = null;
+				} else if (DumpParser.findNamespace(templateindex, title) != null) {
+					reader.skipPage();
+				} else {
+					action.accept(reader.readPage(title));
+					return true;
+				}
+			}
+		} catch (XMLStreamException e) {
+			throw new IllegalStateException("failed to parse dump shard: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new IllegalStateException("failed to read dump shard: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The shard contains only &lt;page&gt; elements, which
+	 * are wrapped into a root element to get well formed XML.
+	 */
+	private DumpStreamReader openShard(long start, long stop) throws XMLStreamException {
+		final InputStream in = new SequenceInputStream(new ByteArrayInputStream(DUMP_START),
+				new SequenceInputStream(new MappedRangeInputStream(channel, start, stop),
+						new ByteArrayInputStream(DUMP_END)));
+		return new DumpStreamReader(in);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Spliterator#trySplit()
+	 */
+	@Override
+	public Spliterator<SimPage> trySplit() {
+		final int remaining = end - next;
+		if (reader != null || remaining < 2) {
+			// a shard in progress can't be handed over
+			return null;
+		}
+		final int mid = next + remaining / 2;
+		final DumpSpliterator prefix = new DumpSpliterator(file, boundaries, next, mid, templateindex);
+		next = mid;
+		return prefix;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Spliterator#estimateSize()
+	 */
+	@Override
+	public long estimateSize() {
+		// rough guess, about 4 KB per page
+		return (boundaries[end] - boundaries[next]) >> 12;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.Spliterator#characteristics()
+	 */
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/**
+	 * Closes the dump file, shared by all split parts.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (reader != null) {
+			reader.close();
+			reader = null;
+		}
+		file.close();
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
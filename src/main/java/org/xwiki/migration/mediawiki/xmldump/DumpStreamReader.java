@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Pull parser for MediaWiki XML dump files, based on StAX.
+ * Only the current &lt;page&gt; element is held in memory.
+ *
+ * <strong>Usage:</strong>
+ * <ol>
+ * <li>call {@link #readNamespaces()}</li>
+ * <li>call {@link #nextTitle()} until it returns null</li>
+ * <li>after each title, call {@link #readPage(String)} or {@link #skipPage()}</li>
+ * </ol>
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class DumpStreamReader implements Closeable {
+
+	private static final String PAGE = "page";
+
+	private final InputStream in;
+	private final XMLStreamReader reader;
+	private boolean atPage = false;
+
+	/**
+	 * @param in the (uncompressed) XML dump
+	 * @throws XMLStreamException
+	 */
+	public DumpStreamReader(InputStream in) throws XMLStreamException {
+		this.in = in;
+		final XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		this.reader = factory.createXMLStreamReader(in, "UTF-8");
+	}
+
+	/**
+	 * Reads the &lt;siteinfo&gt; name space declarations,
+	 * stops in front of the first &lt;page&gt; element.
+	 *
+	 * @return all declared name spaces
+	 * @throws XMLStreamException
+	 */
+	public List<SimNamespace> readNamespaces() throws XMLStreamException {
+		final List<SimNamespace> result = new ArrayList<SimNamespace>();
+		while (!atPage && reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+				final String name = reader.getLocalName();
+				if (PAGE.equals(name)) {
+					atPage = true;
+				} else if ("namespace".equals(name)) {
+					final SimNamespace t = new SimNamespace();
+					t.setKey(reader.getAttributeValue(null, "key"));
+					t.setNamespace(reader.getElementText());
+					result.add(t);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Moves to the next &lt;page&gt; element and reads its title.
+	 * Must be followed by {@link #readPage(String)} or {@link #skipPage()}.
+	 *
+	 * @return the title of the next page or null, if there are no more pages
+	 * @throws XMLStreamException
+	 */
+	public String nextTitle() throws XMLStreamException {
+		while (!atPage) {
+			if (!reader.hasNext()) {
+				return null;
+			}
+			if (reader.next() == XMLStreamConstants.START_ELEMENT && PAGE.equals(reader.getLocalName())) {
+				atPage = true;
+			}
+		}
+		atPage = false;
+		while (reader.hasNext()) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT && "title".equals(reader.getLocalName())) {
+				return reader.getElementText();
+			}
+			if (event == XMLStreamConstants.END_ELEMENT && PAGE.equals(reader.getLocalName())) {
+				return "";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the remaining content of the current page.
+	 * Like the DOM based parser, only the first revision is taken.
+	 *
+	 * @param title the title returned by {@link #nextTitle()}
+	 * @return the page
+	 * @throws XMLStreamException
+	 */
+	public SimPage readPage(String title) throws XMLStreamException {
+		String text = null;
+		String timestamp = null;
+		String username = null;
+		while (reader.hasNext()) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.END_ELEMENT && PAGE.equals(reader.getLocalName())) {
+				break;
+			}
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				final String name = reader.getLocalName();
+				if (text == null && "text".equals(name)) {
+					text = reader.getElementText();
+				} else if (timestamp == null && "timestamp".equals(name)) {
+					timestamp = reader.getElementText();
+				} else if (username == null && "username".equals(name)) {
+					username = reader.getElementText();
+				}
+			}
+		}
+		final SimPage p = new SimPage();
+		p.setTitle(title);
+		p.setText(text != null ? text : "");
+		p.setOriginal(p.getText());
+		p.setUsername(username);
+		if (timestamp != null) {
+			p.setRevision(timestamp);
+		}
+		return p;
+	}
+
+	/**
+	 * Skips the remaining content of the current page,
+	 * without materializing its text.
+	 *
+	 * @throws XMLStreamException
+	 */
+	public void skipPage() throws XMLStreamException {
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.END_ELEMENT && PAGE.equals(reader.getLocalName())) {
+				return;
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			reader.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+}
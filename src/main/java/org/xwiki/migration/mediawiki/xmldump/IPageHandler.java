@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Receives the pages of a dump one by one, while the dump is streamed.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public interface IPageHandler {
+
+	/**
+	 * Called once for every page which is not a template.
+	 * The page is not referenced by the parser afterwards.
+	 *
+	 * @param page
+	 * @throws Exception
+	 */
+	public abstract void handlePage(SimPage page) throws Exception;
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import org.wikimodel.wem.IWemListener;
+
+/**
+ * A post transform filter, which works on the parser events
+ * instead of the serialized XWiki text. The listener returned by
+ * {@link #decorate(IWemListener)} is put in front of the serializer,
+ * thus events can be dropped or rewritten during the transformation.
+ *
+ * {@link #filterPage(org.xwiki.migration.mediawiki.xmldump.model.SimPage)}
+ * is not called, if the filter is used as event filter.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public interface IPostTransformEventFilter extends IPostTransformFilter {
+
+	/**
+	 * The returned listener is reused for the following pages
+	 * of the same thread, as long as no page fails.
+	 *
+	 * @param listener the serializer or the next filter
+	 * @return a listener, which forwards the filtered events to the given one
+	 */
+	public abstract IWemListener decorate(IWemListener listener);
+
+}
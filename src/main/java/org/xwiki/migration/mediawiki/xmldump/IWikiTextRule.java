@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
+
+/**
+ * A pre transform filter, which rewrites single [[link]] or {{template}}
+ * constructs. Consecutive rules are fused by the {@link WikiTextRewriter},
+ * so the page text is scanned only once for all of them.
+ *
+ * A rule must not touch the output, if it doesn't match.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public interface IWikiTextRule extends IPreTransformFilter {
+
+	/**
+	 * Called for each page, before the text is scanned.
+	 * Expensive preparations should be cached.
+	 *
+	 * @param templates
+	 */
+	public abstract void prepare(SimNamespace... templates);
+
+	/**
+	 * @param text the page text
+	 * @param start position of the opening "[["
+	 * @param end position after the closing "]]", there is no ']' in between
+	 * @param out gets the replacement of the matched part
+	 * @return the position after the matched part or -1, if the rule doesn't match
+	 */
+	public abstract int rewriteLink(String text, int start, int end, StringBuilder out);
+
+	/**
+	 * @param text the page text
+	 * @param start position of the opening "{{"
+	 * @param end position after the first "}}" behind start
+	 * @param out gets the replacement of the matched part
+	 * @return the position after the matched part or -1, if the rule doesn't match
+	 */
+	public abstract int rewriteTemplate(String text, int start, int end, StringBuilder out);
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Reads a byte range of a file through memory mapped windows.
+ * A single mapping is limited to 2 GB, thus the range is mapped
+ * piece by piece while reading.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class MappedRangeInputStream extends InputStream {
+
+	static final int WINDOW = 64 << 20;
+
+	private final FileChannel channel;
+	private final long end;
+	private long position;
+	private MappedByteBuffer buffer;
+
+	/**
+	 * @param channel
+	 * @param start first byte of the range
+	 * @param end first byte after the range
+	 */
+	public MappedRangeInputStream(FileChannel channel, long start, long end) {
+		this.channel = channel;
+		this.position = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return false, if the end of the range is reached
+	 * @throws IOException
+	 */
+	private boolean ensureMapped() throws IOException {
+		if (buffer != null && buffer.hasRemaining()) {
+			return true;
+		}
+		if (position >= end) {
+			return false;
+		}
+		final long size = Math.min(WINDOW, end - position);
+		buffer = channel.map(MapMode.READ_ONLY, position, size);
+		position += size;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureMapped()) {
+			return -1;
+		}
+		return buffer.get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureMapped()) {
+			return -1;
+		}
+		final int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	/**
+	 * Searches the channel for the next occurrence of a byte pattern.
+	 *
+	 * @param channel
+	 * @param pattern
+	 * @param from first position to look at
+	 * @param to first position after the search range
+	 * @return the position of the pattern or -1, if not found
+	 * @throws IOException
+	 */
+	public static long indexOf(FileChannel channel, byte[] pattern, long from, long to) throws IOException {
+		for (long window = from; window < to; window += WINDOW - pattern.length) {
+			final long size = Math.min(WINDOW, to - window);
+			if (size < pattern.length) {
+				break;
+			}
+			final MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, window, size);
+			for (int i = 0, len = (int) size - pattern.length; i <= len; i++) {
+				int j = 0;
+				while (j < pattern.length && mapped.get(i + j) == pattern[j]) {
+					j++;
+				}
+				if (j == pattern.length) {
+					return window + i;
+				}
+			}
+			if (window + size >= to) {
+				break;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Searches the channel backwards for the last occurrence of a byte pattern.
+	 *
+	 * @param channel
+	 * @param pattern
+	 * @param to first position after the search range
+	 * @param limit number of bytes to look at
+	 * @return the position of the pattern or -1, if not found
+	 * @throws IOException
+	 */
+	public static long lastIndexOf(FileChannel channel, byte[] pattern, long to, int limit) throws IOException {
+		final long from = Math.max(0, to - limit);
+		final MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, from, to - from);
+		for (int i = (int) (to - from) - pattern.length; i >= 0; i--) {
+			int j = 0;
+			while (j < pattern.length && mapped.get(i + j) == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return from + i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+/**
+ * Decompresses a MediaWiki multistream bz2 dump on several threads.
+ *
+ * The companion index file contains one line per page (offset:id:title),
+ * where offset is the byte position of the independent bz2 stream
+ * holding the page. Each stream is decompressed on its own, the results
+ * are delivered in file order, so the reader sees the plain XML dump.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class MultistreamBzip2InputStream extends InputStream {
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ExecutorService executor;
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+	private final List<Long> offsets;
+	private final int window;
+	private int nextrange = 0;
+	private byte[] current = new byte[0];
+	private int pos = 0;
+
+	/**
+	 * @param dump the multistream dump file
+	 * @param index the index file (may be bz2 compressed)
+	 * @param threads number of decoder threads
+	 * @throws IOException
+	 */
+	public MultistreamBzip2InputStream(File dump, File index, int threads) throws IOException {
+		this.offsets = readOffsets(index, dump.length());
+		this.file = new RandomAccessFile(dump, "r");
+		this.channel = file.getChannel();
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		this.window = Math.max(1, threads) * 2;
+		fill();
+	}
+
+	/**
+	 * @param index
+	 * @param length length of the dump file
+	 * @return sorted, distinct stream offsets, starting with 0 and ending with length
+	 * @throws IOException
+	 */
+	private static List<Long> readOffsets(File index, long length) throws IOException {
+		final TreeSet<Long> result = new TreeSet<Long>();
+		result.add(Long.valueOf(0));
+		result.add(Long.valueOf(length));
+		InputStream in = new BufferedInputStream(new FileInputStream(index), 1 << 16);
+		if (index.getName().endsWith(".bz2")) {
+			in = new BZip2CompressorInputStream(in, true);
+		}
+		final BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		try {
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				final int colon = line.indexOf(':');
+				if (colon > 0) {
+					final long offset = Long.parseLong(line.substring(0, colon));
+					if (offset < length) {
+						result.add(Long.valueOf(offset));
+					}
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return Collections.unmodifiableList(new ArrayList<Long>(result));
+	}
+
+	/**
+	 * Keeps up to {@link #window} streams decompressing ahead.
+	 */
+	private void fill() {
+		while (pending.size() < window && nextrange < offsets.size() - 1) {
+			final long start = offsets.get(nextrange).longValue();
+			final long end = offsets.get(nextrange + 1).longValue();
+			nextrange++;
+			pending.add(executor.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return decompress(start, end);
+				}
+			}));
+		}
+	}
+
+	private byte[] decompress(long start, long end) throws IOException {
+		final InputStream in = new BZip2CompressorInputStream(
+				new BufferedInputStream(new ChannelRangeInputStream(channel, start, end), 1 << 16), true);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, (end - start) * 4));
+		final byte[] buffer = new byte[8192];
+		int read = -1;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return false, if there is nothing left to read
+	 * @throws IOException
+	 */
+	private boolean ensureAvailable() throws IOException {
+		while (pos >= current.length) {
+			if (pending.isEmpty()) {
+				return false;
+			}
+			try {
+				current = pending.removeFirst().get();
+				pos = 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while decompressing");
+			} catch (ExecutionException e) {
+				throw new IOException("failed to decompress stream", e.getCause());
+			}
+			fill();
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensureAvailable()) {
+			return -1;
+		}
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!ensureAvailable()) {
+			return -1;
+		}
+		final int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException {
+		executor.shutdownNow();
+		pending.clear();
+		file.close();
+	}
+
+	/**
+	 * Reads a byte range of a file channel with positional reads,
+	 * so several ranges can be read at the same time.
+	 */
+	private static class ChannelRangeInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private final long end;
+		private long position;
+
+		ChannelRangeInputStream(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (position >= end) {
+				return -1;
+			}
+			final int n = (int) Math.min(len, end - position);
+			final int read = channel.read(ByteBuffer.wrap(b, off, n), position);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
+import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
+
+/**
+ * Replaces template invocations like {{foo|param1|name=value}} by the
+ * definition of the template.
+ *
+ * All definitions are indexed once by their normalized name and compiled
+ * into a {@link CompiledTemplate}, so each page is resolved in a single
+ * left-to-right scan, independent of the number of templates.
+ * Nested templates, in parameters as well as in definitions, are expanded
+ * up to {@link #MAX_DEPTH} levels and {@link #MAX_SIZE} characters per
+ * invocation. All invocations of a page together may produce up to
+ * {@link #MAX_PAGE_SIZE} characters, further ones are kept as they are.
+ * Like MediaWiki, a template invoking itself, directly or through other
+ * templates, is not expanded again. Expansions of identical invocations are cached.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class TemplateResolver {
+
+	public static final int MAX_DEPTH = 40;
+	public static final int MAX_SIZE = 1 << 20;
+	public static final int MAX_PAGE_SIZE = 8 << 20;
+
+	private static final int CACHE_SIZE = 10000;
+	private static final String TEMPLATE_PREFIX = "template:";
+
+	private final Map<String, CompiledTemplate> index = new HashMap<String, CompiledTemplate>();
+
+	private final Map<String, String> cache = Collections.synchronizedMap(new LinkedHashMap<String, String>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	});
+
+	/**
+	 * @param templates all template name spaces
+	 */
+	public TemplateResolver(List<SimNamespace> templates) {
+		for (SimNamespace template : templates) {
+			for (int i=0, len=template.sizeDefinitions(); i<len; i++) {
+				final SimTemplateDefinition td = template.get(i);
+				final String key = normalize(td.getTitle());
+				if (!index.containsKey(key)) {
+					index.put(key, CompiledTemplate.compile(td.getText()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Assuming that templates/macros can be used with or without name space,
+	 * means: {{Template:foo|param1}} is the same like {{foo|param1}}.
+	 * Template names are not case sensitive.
+	 *
+	 * @param name
+	 * @return the lookup key
+	 */
+	static String normalize(String name) {
+		String key = name.trim().replace('_', ' ').toLowerCase(Locale.ENGLISH);
+		if (key.startsWith(TEMPLATE_PREFIX)) {
+			key = key.substring(TEMPLATE_PREFIX.length()).trim();
+		}
+		return key;
+	}
+
+	/**
+	 * @param source the page text
+	 * @return the text with all known templates replaced
+	 */
+	public String resolve(String source) {
+		return expand(source, 0, new Expansion());
+	}
+
+	/**
+	 * @param source
+	 * @param depth
+	 * @param state
+	 * @return the text with all known templates replaced
+	 */
+	private String expand(String source, int depth, Expansion state) {
+		int start = source.indexOf("{{");
+		if (start < 0) {
+			return source;
+		}
+		final StringBuilder text = new StringBuilder(source.length() + 256);
+		final Braces braces = new Braces(source);
+		int copied = 0;
+		while (start >= 0) {
+			final boolean param = source.startsWith("{{{", start);
+			final int end = braces.close(start);
+			if (end < 0) {
+				start = source.indexOf("{{", start + 1);
+				continue;
+			}
+			text.append(source, copied, start);
+			if (param) {
+				// unresolved parameter, keep it
+				text.append(source, start, end);
+			} else {
+				final String macro = source.substring(start + 2, end - 2);
+				final String resolved = invoke(macro, depth, state);
+				if (resolved != null) {
+					text.append(resolved);
+				} else {
+					// unknown template, but its parameters may contain known ones
+					text.append("{{").append(expand(macro, depth + 1, state)).append("}}");
+				}
+			}
+			copied = end;
+			start = source.indexOf("{{", copied);
+		}
+		text.append(source, copied, source.length());
+		return text.toString();
+	}
+
+	/**
+	 * @param macro the invocation without the surrounding braces
+	 * @param depth
+	 * @param state
+	 * @return the expanded template or null, if the template is unknown or a limit is reached
+	 */
+	private String invoke(String macro, int depth, Expansion state) {
+		if (depth >= MAX_DEPTH || state.size > MAX_PAGE_SIZE) {
+			state.limited = true;
+			return null;
+		}
+		final String cached = cache.get(macro);
+		if (cached != null) {
+			state.size += cached.length();
+			return cached;
+		}
+		final List<String> parts = splitParameters(macro);
+		final String name = normalize(expand(parts.get(0), depth + 1, state));
+		final CompiledTemplate template = index.get(name);
+		if (template == null) {
+			return null;
+		}
+		return invoke(macro, name, template, parts, depth, state);
+	}
+
+	/**
+	 * @param macro the invocation without the surrounding braces
+	 * @param name the normalized template name
+	 * @param template
+	 * @param parts name and parameters of the invocation
+	 * @param depth
+	 * @param state
+	 * @return the expanded template, the invocation itself for a template loop
+	 * or null, if a limit is reached
+	 */
+	private String invoke(String macro, String name, CompiledTemplate template, List<String> parts, int depth, Expansion state) {
+		final Map<String, String> params = new HashMap<String, String>();
+		int position = 0;
+		for (int i=1; i<parts.size(); i++) {
+			final String part = parts.get(i);
+			final int equidx = new Braces(part).indexOfTopLevel('=', 0);
+			if (equidx > 0) {
+				params.put(part.substring(0, equidx).trim(), expand(part.substring(equidx + 1), depth + 1, state).trim());
+			} else {
+				position++;
+				params.put(Integer.toString(position), expand(part, depth + 1, state));
+			}
+		}
+		final StringBuilder raw = new StringBuilder();
+		template.expand(params, raw);
+		state.size += macro.length() + raw.length();
+		if (state.size > MAX_PAGE_SIZE) {
+			state.limited = true;
+			return null;
+		}
+		if (!state.active.add(name)) {
+			// template loop, the result depends on the caller
+			state.limited = true;
+			return "{{" + macro + "}}";
+		}
+		final String result;
+		try {
+			result = expand(raw.toString(), depth + 1, state);
+		} finally {
+			state.active.remove(name);
+		}
+		if (result.length() > MAX_SIZE) {
+			state.limited = true;
+			return null;
+		}
+		if (!state.limited) {
+			cache.put(macro, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @param macro
+	 * @return the name followed by all parameters, split at top level '|'
+	 */
+	private static List<String> splitParameters(String macro) {
+		final List<String> result = new ArrayList<String>();
+		final Braces braces = new Braces(macro);
+		int from = 0;
+		for (int bar = braces.indexOfTopLevel('|', 0); bar >= 0; bar = braces.indexOfTopLevel('|', from)) {
+			result.add(macro.substring(from, bar));
+			from = bar + 1;
+		}
+		result.add(macro.substring(from));
+		return result;
+	}
+
+	/**
+	 * State of a single {@link #resolve(String)} call
+	 */
+	private static class Expansion {
+		/** once a limit or loop is hit, results depend on the caller and must not be cached */
+		boolean limited = false;
+		/** characters produced by all invocations so far */
+		long size = 0;
+		/** names of the templates being expanded */
+		final Set<String> active = new HashSet<String>();
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+/**
+ * Applies several {@link IWikiTextRule}s within a single left-to-right
+ * scan over the page text. At each [[link]] or {{template}} the first
+ * matching rule wins, scanning continues behind the matched part.
+ * The text is copied only once and only if a rule matched.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class WikiTextRewriter implements IPreTransformFilter {
+
+	private final IWikiTextRule[] rules;
+
+	/**
+	 * @param rules
+	 */
+	public WikiTextRewriter(IWikiTextRule... rules) {
+		this.rules = rules;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IPreTransformFilter#filterPage(org.xwiki.migration.mediawiki.xmldump.model.SimPage, org.xwiki.migration.mediawiki.xmldump.model.SimNamespace[])
+	 */
+	@Override
+	public void filterPage(SimPage page, SimNamespace... templates) {
+		for (IWikiTextRule rule : rules) {
+			rule.prepare(templates);
+		}
+		page.setText(rewrite(page.getText()));
+	}
+
+	/**
+	 * @param text
+	 * @return the rewritten text, the same instance if nothing matched
+	 */
+	public String rewrite(String text) {
+		final int len = text.length();
+		StringBuilder out = null;
+		int copied = 0;
+		// first ']' and first "}}" found so far, to avoid searching them again
+		int bracket = -1;
+		int braces = -1;
+		int i = 0;
+		while (i < len - 1) {
+			final char c = text.charAt(i);
+			int end = -1;
+			boolean link = false;
+			if (c == '[' && text.charAt(i + 1) == '[') {
+				if (bracket < i + 2) {
+					bracket = text.indexOf(']', i + 2);
+					if (bracket < 0) {
+						bracket = len;
+					}
+				}
+				if (bracket < len - 1 && text.charAt(bracket + 1) == ']') {
+					end = bracket + 2;
+					link = true;
+				}
+			} else if (c == '{' && text.charAt(i + 1) == '{') {
+				if (braces < i + 2) {
+					braces = text.indexOf("}}", i + 2);
+					if (braces < 0) {
+						braces = len;
+					}
+				}
+				if (braces < len) {
+					end = braces + 2;
+				}
+			}
+			if (end < 0) {
+				i++;
+				continue;
+			}
+			if (out == null) {
+				out = new StringBuilder(len + 64);
+			}
+			final int mark = out.length();
+			out.append(text, copied, i);
+			int next = -1;
+			for (int r = 0; r < rules.length && next < 0; r++) {
+				next = link ? rules[r].rewriteLink(text, i, end, out) : rules[r].rewriteTemplate(text, i, end, out);
+			}
+			if (next < 0) {
+				out.setLength(mark);
+				i++;
+			} else {
+				copied = next;
+				i = next;
+			}
+		}
+		if (out == null || copied == 0) {
+			return text;
+		}
+		out.append(text, copied, len);
+		return out.toString();
+	}
+
+	/**
+	 * Matches the prefix of a link like "[[ Word : ", the same way
+	 * the regular expression "\[\[\s*word\s*:\s*" does.
+	 *
+	 * @param text
+	 * @param start position of the opening "[["
+	 * @param word
+	 * @param ignorecase US-ASCII only, like {@link java.util.regex.Pattern#CASE_INSENSITIVE}
+	 * @return the position after the prefix or -1
+	 */
+	public static int matchLinkPrefix(String text, int start, String word, boolean ignorecase) {
+		int i = skipWhitespace(text, start + 2);
+		if (!regionMatches(text, i, word, ignorecase)) {
+			return -1;
+		}
+		i = skipWhitespace(text, i + word.length());
+		if (i >= text.length() || text.charAt(i) != ':') {
+			return -1;
+		}
+		return skipWhitespace(text, i + 1);
+	}
+
+	/**
+	 * @param text
+	 * @param offset
+	 * @param word
+	 * @param ignorecase US-ASCII only
+	 * @return true, if text contains word at offset
+	 */
+	public static boolean regionMatches(String text, int offset, String word, boolean ignorecase) {
+		if (offset + word.length() > text.length()) {
+			return false;
+		}
+		for (int j = 0, len = word.length(); j < len; j++) {
+			final char a = text.charAt(offset + j);
+			final char b = word.charAt(j);
+			if (a != b && !(ignorecase && toLowerAscii(a) == toLowerAscii(b))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param s
+	 * @return s with all US-ASCII letters in lower case
+	 */
+	public static String toLowerAscii(String s) {
+		final char[] chars = s.toCharArray();
+		for (int j = 0; j < chars.length; j++) {
+			chars[j] = toLowerAscii(chars[j]);
+		}
+		return new String(chars);
+	}
+
+	private static char toLowerAscii(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	/**
+	 * @param text
+	 * @param from
+	 * @return the first position, which is not a whitespace like "\s"
+	 */
+	private static int skipWhitespace(String text, int from) {
+		int i = from;
+		while (i < text.length()) {
+			final char c = text.charAt(i);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+}
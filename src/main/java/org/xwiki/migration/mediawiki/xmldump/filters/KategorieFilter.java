@@ -15,10 +15,8 @@
  */
 package org.xwiki.migration.mediawiki.xmldump.filters;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.xwiki.migration.mediawiki.xmldump.IPreTransformFilter;
+import org.xwiki.migration.mediawiki.xmldump.IWikiTextRule;
+import org.xwiki.migration.mediawiki.xmldump.WikiTextRewriter;
 import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
 import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
 
@@ -29,28 +27,49 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
  * 
  * @author mkirst(at portolancs dot com)
  */
-public class KategorieFilter implements IPreTransformFilter {
+public class KategorieFilter implements IWikiTextRule {
+
+	private static final String PREFIX = "[[Category:";
 
 	/* (non-Javadoc)
 	 * @see de.portolancs.mediawiki.xmldump.IPageFilter#filterPage(de.portolancs.mediawiki.xmldump.model.Page, de.portolancs.mediawiki.xmldump.model.Template[])
 	 */
 	@Override
 	public void filterPage(SimPage page, SimNamespace... templates) {
-		String text = page.getText();
-		StringBuilder source = new StringBuilder(text);
-		Pattern p = Pattern.compile("\\[\\[(\\s*kategorie\\s*:\\s*)[^\\]]*?\\]\\]", Pattern.CASE_INSENSITIVE);
-		for (Matcher m = p.matcher(source); m.find(); m = p.matcher(source)) {
-			int start = m.start(1);
-			int end = m.end(1);
-			source.replace(start, end, "Category:");
+		new WikiTextRewriter(this).filterPage(page, templates);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#prepare(org.xwiki.migration.mediawiki.xmldump.model.SimNamespace[])
+	 */
+	@Override
+	public void prepare(SimNamespace... templates) {
+		// nothing to prepare
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#rewriteLink(java.lang.String, int, int, java.lang.StringBuilder)
+	 */
+	@Override
+	public int rewriteLink(String text, int start, int end, StringBuilder out) {
+		// sample: [[ Kategorie : foo]] OR [[category:foo]] -- only 'kategorie' is not case sensitive
+		int prefixend = WikiTextRewriter.matchLinkPrefix(text, start, "kategorie", true);
+		if (prefixend < 0) {
+			prefixend = WikiTextRewriter.matchLinkPrefix(text, start, "category", false);
 		}
-		p = Pattern.compile("\\[\\[(\\s*category\\s*:\\s*)[^\\]]*?\\]\\]");
-		for (Matcher m = p.matcher(source); m.find(); m = p.matcher(source)) {
-			int start = m.start(1);
-			int end = m.end(1);
-			source.replace(start, end, "Category:");
+		if (prefixend < 0) {
+			return -1;
 		}
-		page.setText(source.toString());
+		out.append(PREFIX);
+		return prefixend;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#rewriteTemplate(java.lang.String, int, int, java.lang.StringBuilder)
+	 */
+	@Override
+	public int rewriteTemplate(String text, int start, int end, StringBuilder out) {
+		return -1;
 	}
 
 }
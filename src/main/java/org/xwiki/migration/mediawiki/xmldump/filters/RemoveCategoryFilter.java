@@ -15,7 +15,10 @@
  */
 package org.xwiki.migration.mediawiki.xmldump.filters;
 
-import org.xwiki.migration.mediawiki.xmldump.IPostTransformFilter;
+import org.wikimodel.wem.CompositeListener;
+import org.wikimodel.wem.IWemListener;
+import org.wikimodel.wem.WikiReference;
+import org.xwiki.migration.mediawiki.xmldump.IPostTransformEventFilter;
 import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
 
 /**
@@ -23,7 +26,9 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
  * 
  * @author mkirst(at portolancs dot com)
  */
-public class RemoveCategoryFilter implements IPostTransformFilter {
+public class RemoveCategoryFilter implements IPostTransformEventFilter {
+
+	private static final String CATEGORY = "Category:";
 
 	@Override
 	public void filterPage(SimPage page) {
@@ -32,4 +37,29 @@ public class RemoveCategoryFilter implements IPostTransformFilter {
 		page.setText(text);
 	}
 
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IPostTransformEventFilter#decorate(org.wikimodel.wem.IWemListener)
+	 */
+	@Override
+	public IWemListener decorate(IWemListener listener) {
+		return new CompositeListener(listener) {
+			@Override
+			public void onReference(String ref) {
+				onReference(new WikiReference(ref));
+			}
+
+			@Override
+			public void onReference(WikiReference ref) {
+				// the serializer prints [[label>>link]], the label defaults to the link
+				String label = ref.getLabel();
+				if (label == null || "".equals(label)) {
+					label = ref.getLink();
+				}
+				if (!label.startsWith(CATEGORY)) {
+					super.onReference(ref);
+				}
+			}
+		};
+	}
+
 }
@@ -20,7 +20,12 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.xwiki.migration.mediawiki.xmldump.IPostTransformFilter;
+import org.wikimodel.wem.CompositeListener;
+import org.wikimodel.wem.IWemListener;
+import org.wikimodel.wem.WikiParameter;
+import org.wikimodel.wem.WikiParameters;
+import org.wikimodel.wem.WikiReference;
+import org.xwiki.migration.mediawiki.xmldump.IPostTransformEventFilter;
 import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
 
 /**
@@ -28,9 +33,11 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
  * 
  * @author mkirst(at portolancs dot com)
  */
-public class RemoveImageLeftAlign implements IPostTransformFilter {
+public class RemoveImageLeftAlign implements IPostTransformEventFilter {
 
 	private final static String KILLIT = "align=\"left\"";
+	private final static String ALIGN = "align";
+	private final static String LEFT = "left";
 	
 	@Override
 	public void filterPage(SimPage page) {
@@ -53,5 +60,24 @@ public class RemoveImageLeftAlign implements IPostTransformFilter {
 		}
 		page.setText(sb.toString());
 	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IPostTransformEventFilter#decorate(org.wikimodel.wem.IWemListener)
+	 */
+	@Override
+	public IWemListener decorate(IWemListener listener) {
+		return new CompositeListener(listener) {
+			@Override
+			public void onImage(WikiReference ref) {
+				final WikiParameters params = ref.getParameters();
+				final WikiParameter align = params.getParameter(ALIGN);
+				if (align != null && LEFT.equals(align.getValue())) {
+					super.onImage(new WikiReference(ref.getLink(), ref.getLabel(), params.remove(ALIGN)));
+				} else {
+					super.onImage(ref);
+				}
+			}
+		};
+	}
 	
 }
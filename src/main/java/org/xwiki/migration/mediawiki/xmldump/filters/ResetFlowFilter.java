@@ -15,7 +15,8 @@
  */
 package org.xwiki.migration.mediawiki.xmldump.filters;
 
-import org.xwiki.migration.mediawiki.xmldump.IPreTransformFilter;
+import org.xwiki.migration.mediawiki.xmldump.IWikiTextRule;
+import org.xwiki.migration.mediawiki.xmldump.WikiTextRewriter;
 import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
 import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
 
@@ -30,15 +31,42 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
  * 
  * @author mkirst(at portolancs dot com)
  */
-public class ResetFlowFilter implements IPreTransformFilter {
+public class ResetFlowFilter implements IWikiTextRule {
 
 	/* (non-Javadoc)
 	 * @see de.portolancs.mediawiki.xmldump.IPageFilter#filterPage(de.portolancs.mediawiki.xmldump.model.Page, de.portolancs.mediawiki.xmldump.model.Template[])
 	 */
 	@Override
 	public void filterPage(SimPage page, SimNamespace... templates) {
-		String text = page.getText();
-		page.setText(text.replaceAll("\\{\\{-\\}\\}", ""));
+		new WikiTextRewriter(this).filterPage(page, templates);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#prepare(org.xwiki.migration.mediawiki.xmldump.model.SimNamespace[])
+	 */
+	@Override
+	public void prepare(SimNamespace... templates) {
+		// nothing to prepare
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#rewriteLink(java.lang.String, int, int, java.lang.StringBuilder)
+	 */
+	@Override
+	public int rewriteLink(String text, int start, int end, StringBuilder out) {
+		return -1;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#rewriteTemplate(java.lang.String, int, int, java.lang.StringBuilder)
+	 */
+	@Override
+	public int rewriteTemplate(String text, int start, int end, StringBuilder out) {
+		// {{-}} is removed completely
+		if (end - start == 5 && text.charAt(start + 2) == '-') {
+			return end;
+		}
+		return -1;
 	}
 
 }
@@ -15,10 +15,11 @@
  */
 package org.xwiki.migration.mediawiki.xmldump.filters;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.HashMap;
+import java.util.Map;
 
-import org.xwiki.migration.mediawiki.xmldump.IPreTransformFilter;
+import org.xwiki.migration.mediawiki.xmldump.IWikiTextRule;
+import org.xwiki.migration.mediawiki.xmldump.WikiTextRewriter;
 import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
 import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
 import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
@@ -30,39 +31,87 @@ import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
  * 
  * @author mkirst(at portolancs dot com)
  */
-public class VorlageFilter implements IPreTransformFilter {
+public class VorlageFilter implements IWikiTextRule {
 
 	private static final String VORLAGE = "vorlage";
 	private static final String TEMPLATE = "Template";
 
+	private static final String TEMPLATE_PREFIX = TEMPLATE + ":";
+
+	private SimNamespace[] prepared = null;
+	/** lower case template name -&gt; template name */
+	private volatile Map<String, String> names = new HashMap<String, String>();
+
 	/* (non-Javadoc)
 	 * @see de.portolancs.mediawiki.xmldump.IPageFilter#filterPage(de.portolancs.mediawiki.xmldump.model.Page, de.portolancs.mediawiki.xmldump.model.Template[])
 	 */
 	@Override
 	public void filterPage(SimPage page, SimNamespace... templates) {
-		// clean templates name space first
-		for (SimNamespace t : templates) {
-			filterTemplate(t);
+		new WikiTextRewriter(this).filterPage(page, templates);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#prepare(org.xwiki.migration.mediawiki.xmldump.model.SimNamespace[])
+	 */
+	@Override
+	public synchronized void prepare(SimNamespace... templates) {
+		if (templates == prepared) {
+			return;
+		}
+		// clean templates name space first,
+		// pages may be filtered concurrently, but share the templates
+		synchronized (templates) {
+			for (SimNamespace t : templates) {
+				filterTemplate(t);
+			}
 		}
-		// clean the page
-		String text = page.getText();
+		// unify and clean all 'Vorlage' to the one and only name space 'Template',
+		// the last definition wins, if names differ only in case
+		final Map<String, String> result = new HashMap<String, String>();
 		for (SimNamespace t : templates) {
 			final String ns = t.getNamespace();
 			if (TEMPLATE.equals(ns)) {
-				// unify and clean all 'Vorlage' to the one and only name space 'Template' 
 				for (int i=0, len=t.sizeDefinitions(); i<len; i++) {
 					final SimTemplateDefinition td = t.get(i);
 					final String name = td.getTitle().substring(ns.length()+1);
-					// sample: {{Vorlage:Hint}} OR {{Template:Hint}}
-					// \{\{(?:Vorlage|Template):Hint\}\}   -- CASE_INSENSITIVE!!!
-					String regex = "\\{\\{(?:Vorlage|" + ns + "):" + name + "\\}\\}";
-					final Pattern p = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
-					final Matcher m = p.matcher(text);
-					text = m.replaceAll("{{" + ns + ":" + name + "}}");
+					result.put(WikiTextRewriter.toLowerAscii(name), name);
 				}
 			}
 		}
-		page.setText(text);
+		names = result;
+		prepared = templates;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#rewriteLink(java.lang.String, int, int, java.lang.StringBuilder)
+	 */
+	@Override
+	public int rewriteLink(String text, int start, int end, StringBuilder out) {
+		return -1;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.mediawiki.xmldump.IWikiTextRule#rewriteTemplate(java.lang.String, int, int, java.lang.StringBuilder)
+	 */
+	@Override
+	public int rewriteTemplate(String text, int start, int end, StringBuilder out) {
+		// sample: {{Vorlage:Hint}} OR {{Template:Hint}} -- CASE_INSENSITIVE!!!
+		final int inner = start + 2;
+		int nameidx = -1;
+		if (WikiTextRewriter.regionMatches(text, inner, VORLAGE + ":", true)) {
+			nameidx = inner + VORLAGE.length() + 1;
+		} else if (WikiTextRewriter.regionMatches(text, inner, TEMPLATE_PREFIX, true)) {
+			nameidx = inner + TEMPLATE_PREFIX.length();
+		}
+		if (nameidx < 0) {
+			return -1;
+		}
+		final String name = names.get(WikiTextRewriter.toLowerAscii(text.substring(nameidx, end - 2)));
+		if (name == null) {
+			return -1;
+		}
+		out.append("{{").append(TEMPLATE_PREFIX).append(name).append("}}");
+		return end;
 	}
 
 	private void filterTemplate(SimNamespace template) {
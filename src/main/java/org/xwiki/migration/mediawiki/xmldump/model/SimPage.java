@@ -38,6 +38,7 @@ public class SimPage {
 	private String username;
 	private String text;
 	private String original;
+	private String namespace;
 	
 	private Set<String> categories = new HashSet<String>();
 	private Set<String> files = new HashSet<String>();
@@ -76,10 +77,17 @@ public class SimPage {
 			final int min   = Integer.parseInt(m.group(5));
 			final int sec   = Integer.parseInt(m.group(6));
 			final Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+			cal.clear();
 			cal.set(year, month, date, hrs, min, sec);
 			this.revision = cal.getTime();
 		}
 	}
+	/**
+	 * @param revision the revision to set
+	 */
+	public void setRevision(Date revision) {
+		this.revision = revision;
+	}
 	/**
 	 * @return the username
 	 */
@@ -149,6 +157,14 @@ public class SimPage {
 	public boolean addFile(String filename) {
 		return files.add(filename);
 	}
+	/**
+	 * @param filename
+	 * @return
+	 * @see java.util.Set#remove(java.lang.Object)
+	 */
+	public boolean removeFile(String filename) {
+		return files.remove(filename);
+	}
 	/**
 	 * @return all files 
 	 */
@@ -167,5 +183,17 @@ public class SimPage {
 	public void setOriginal(String original) {
 		this.original = original;
 	}
+	/**
+	 * @return the XWiki space, determined before the transformation
+	 */
+	public String getNamespace() {
+		return namespace;
+	}
+	/**
+	 * @param namespace the XWiki space to set
+	 */
+	public void setNamespace(String namespace) {
+		this.namespace = namespace;
+	}
 	
 }
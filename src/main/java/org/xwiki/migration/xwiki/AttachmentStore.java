@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Knows, which page owns the attachment with a given content hash.
+ * The first page referencing a binary uploads it, all further pages
+ * link to the attachment of that page instead of uploading a copy.
+ *
+ * The owners are appended to a file (hash, page id, file name separated
+ * by tabs), so a restarted upload links to the same pages. An owner is
+ * only written, once it has uploaded the attachment: the pages of a
+ * restarted upload don't link to an attachment, which was never uploaded.
+ * Within one run, pages link to the owner right away, if the owner fails,
+ * their links point to a missing file until the owner is uploaded.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class AttachmentStore implements Closeable {
+
+	private static final String HASH_ALGORITHM = "SHA-1";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** hash -&gt; page id and file name */
+	private final Map<String, String[]> owners = new HashMap<String, String[]>();
+	/** file path -&gt; hash, files in a shared folder are hashed once */
+	private final Map<String, String> hashes = new HashMap<String, String>();
+	/** page id and file name -&gt; hash of the owners, which have not uploaded yet */
+	private final Map<String, String> unconfirmed = new HashMap<String, String>();
+	private final Writer writer;
+
+	/**
+	 * @param file
+	 * @throws IOException
+	 */
+	public AttachmentStore(File file) throws IOException {
+		if (file.exists()) {
+			UploadJournal.truncateIncompleteLine(file);
+			load(file);
+		}
+		this.writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+	}
+
+	private void load(File file) throws IOException {
+		final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+		try {
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				final String[] parts = line.split("\t");
+				if (parts.length == 3 && !owners.containsKey(parts[0])) {
+					owners.put(parts[0], new String[] { parts[1], parts[2] });
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * @param file the attachment to upload
+	 * @param pageId
+	 * @param filename
+	 * @return the reference (Space.Page@file) of an identical attachment of another page,
+	 * or null, if this page owns the content and has to upload it
+	 * @throws IOException
+	 */
+	public synchronized String claim(File file, String pageId, String filename) throws IOException {
+		final String hash = hash(file);
+		final String[] owner = owners.get(hash);
+		if (owner == null) {
+			owners.put(hash, new String[] { pageId, filename });
+			unconfirmed.put(pageId + '\t' + filename, hash);
+			return null;
+		}
+		if (owner[0].equals(pageId)) {
+			return null;
+		}
+		return owner[0] + "@" + owner[1];
+	}
+
+	/**
+	 * Records the owner, after it has uploaded the attachment.
+	 * Nothing to do for other attachments.
+	 *
+	 * @param pageId
+	 * @param filename
+	 * @throws IOException
+	 */
+	public synchronized void uploaded(String pageId, String filename) throws IOException {
+		final String hash = unconfirmed.remove(pageId + '\t' + filename);
+		if (hash != null) {
+			writer.write(hash + '\t' + pageId + '\t' + filename + '\n');
+			writer.flush();
+		}
+	}
+
+	private String hash(File file) throws IOException {
+		final String path = file.getAbsolutePath();
+		String hash = hashes.get(path);
+		if (hash == null) {
+			hash = digest(file);
+			hashes.put(path, hash);
+		}
+		return hash;
+	}
+
+	private static String digest(File file) throws IOException {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final InputStream in = new FileInputStream(file);
+		try {
+			final byte[] buffer = new byte[64 << 10];
+			int read = -1;
+			while ((read = in.read(buffer)) > 0) {
+				md.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		final byte[] digest = md.digest();
+		final char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX[digest[i] & 0xf];
+		}
+		// the size makes collisions even less likely
+		return new String(hex) + "-" + file.length();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+}
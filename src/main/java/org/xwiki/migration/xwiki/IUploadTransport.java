@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.swizzle.confluence.Attachment;
+import org.codehaus.swizzle.confluence.Comment;
+import org.codehaus.swizzle.confluence.Page;
+
+/**
+ * Sends the converted pages to XWiki. Used by several upload threads
+ * at the same time, the calls for one page come in order from one thread.
+ *
+ * Implementations: {@link XmlRpcTransport}, {@link RestTransport} and
+ * {@link StandInTransport}, which needs no server. Selected by upload.transport.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public interface IUploadTransport extends Closeable {
+
+	/**
+	 * @param pageId sample: Space.Page
+	 * @return true, if the page exists, false if the server says it doesn't
+	 * @throws Exception if the request failed, it's unknown whether the page exists
+	 */
+	public abstract boolean exists(String pageId) throws Exception;
+
+	/**
+	 * @param space
+	 * @return ids of all pages of the space, empty if the server says the space doesn't exist
+	 * @throws Exception if the request failed, it's unknown which pages exist
+	 */
+	public abstract Set<String> listPages(String space) throws Exception;
+
+	/**
+	 * Creates or replaces the page.
+	 *
+	 * @param page
+	 * @throws Exception
+	 */
+	public abstract void storePage(Page page) throws Exception;
+
+	/**
+	 * @param attachment file name and page id
+	 * @param data the content
+	 * @throws Exception
+	 */
+	public abstract void storeAttachment(Attachment attachment, byte[] data) throws Exception;
+
+	/**
+	 * Large files should be streamed, not read into memory.
+	 *
+	 * @param attachment file name and page id
+	 * @param file the content
+	 * @throws Exception
+	 */
+	public abstract void storeAttachment(Attachment attachment, File file) throws Exception;
+
+	/**
+	 * @param comment
+	 * @throws Exception
+	 */
+	public abstract void addComment(Comment comment) throws Exception;
+
+	/**
+	 * Comments are not idempotent, this tells whether a comment, whose
+	 * request failed, was added anyway.
+	 *
+	 * @param comment
+	 * @return true, if the page has a comment with the same content
+	 * @throws Exception
+	 */
+	public abstract boolean hasComment(Comment comment) throws Exception;
+
+	/**
+	 * Executes the calls in order, as few requests as the protocol allows.
+	 * A failed call gets its fault, the other calls are executed anyway.
+	 *
+	 * @param calls
+	 * @throws Exception if the request as a whole failed
+	 */
+	public abstract void execute(List<UploadCall> calls) throws Exception;
+
+	/**
+	 * @param pageIds
+	 * @return page id -&gt; current tags, pages without tags are missing
+	 * @throws Exception
+	 */
+	public abstract Map<String, List<String>> getTags(List<String> pageIds) throws Exception;
+
+	/**
+	 * Replaces the tags of the pages. A failed page does not stop the others.
+	 *
+	 * @param tags page id -&gt; all tags of the page
+	 * @return page id -&gt; fault of the pages, whose tags were not stored
+	 * @throws Exception if the request as a whole failed
+	 */
+	public abstract Map<String, Exception> storeTags(Map<String, List<String>> tags) throws Exception;
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
+
+/**
+ * Sends several XML-RPC calls in one system.multicall request.
+ * The server executes them in the given order, each call gets
+ * its own result or fault.
+ *
+ * {@link org.xwiki.xmlrpc.XWikiXmlRpcClient} hides its connection and
+ * token, thus this client logs in on its own. If the server does not
+ * know system.multicall, all further calls to this server are sent one by one.
+ * Like the XWiki client, an instance handles one request at a time.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class MulticallClient {
+
+	private static final String HANDLER = "confluence1.";
+	/** fault code for an unknown method, see the specification for fault code interoperability */
+	private static final int METHOD_NOT_FOUND = -32601;
+	/** fault of the Apache XML-RPC server (XWiki) for an unknown method, without a code */
+	private static final String NO_SUCH_HANDLER = "No such handler";
+	/** URLs of the servers without system.multicall, shared by all clients of the same server */
+	private static final Set<String> unsupported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final Logger logger = Logger.getLogger(this.getClass().getName());
+	private final XmlRpcClient client = new XmlRpcClient();
+	private final String url;
+	private String token = "";
+
+	/**
+	 * @param url the XML-RPC end point
+	 * @throws MalformedURLException
+	 */
+	public MulticallClient(String url) throws MalformedURLException {
+		this.url = url;
+		final XmlRpcClientConfigImpl config = new XmlRpcClientConfigImpl();
+		config.setServerURL(new URL(url));
+		client.setConfig(config);
+	}
+
+	public synchronized void login(String user, String pass) throws XmlRpcException {
+		token = (String) client.execute(HANDLER + "login", new Object[] { user, pass });
+	}
+
+	public synchronized void logout() throws XmlRpcException {
+		client.execute(HANDLER + "logout", new Object[] { token });
+		token = "";
+	}
+
+	/**
+	 * Executes the calls, the results are stored in the calls.
+	 *
+	 * @param calls
+	 * @throws XmlRpcException if the request as a whole failed
+	 */
+	public synchronized void execute(List<Call> calls) throws XmlRpcException {
+		if (calls.isEmpty()) {
+			return;
+		}
+		if (!unsupported.contains(url)) {
+			final List<Map<String, Object>> requests = new ArrayList<Map<String, Object>>(calls.size());
+			for (Call call : calls) {
+				final Map<String, Object> request = new HashMap<String, Object>();
+				request.put("methodName", HANDLER + call.method);
+				request.put("params", call.params(token));
+				requests.add(request);
+			}
+			final Object[] responses;
+			try {
+				responses = (Object[]) client.execute("system.multicall", new Object[] { requests });
+			} catch (XmlRpcException e) {
+				if (!isUnknownMethod(e)) {
+					throw e;
+				}
+				if (unsupported.add(url)) {
+					logger.warning("server doesn't support system.multicall, calls are sent one by one: " + e.getMessage());
+				}
+				executeEach(calls);
+				return;
+			}
+			for (int i = 0; i < calls.size(); i++) {
+				final Object response = i < responses.length ? responses[i] : null;
+				if (response instanceof Object[] && ((Object[]) response).length > 0) {
+					calls.get(i).result = ((Object[]) response)[0];
+				} else if (response instanceof Map) {
+					final Map<?, ?> fault = (Map<?, ?>) response;
+					calls.get(i).fault = new XmlRpcException(fault.get("faultCode") instanceof Integer
+							? ((Integer) fault.get("faultCode")).intValue() : 0, String.valueOf(fault.get("faultString")));
+				} else {
+					calls.get(i).fault = new XmlRpcException("no result from system.multicall");
+				}
+			}
+		} else {
+			executeEach(calls);
+		}
+	}
+
+	private void executeEach(List<Call> calls) {
+		for (Call call : calls) {
+			try {
+				call.result = client.execute(HANDLER + call.method, call.params(token));
+			} catch (XmlRpcException e) {
+				call.fault = e;
+			}
+		}
+	}
+
+	/**
+	 * Transport and client errors are subclasses of XmlRpcException,
+	 * a fault sent by the server is not.
+	 *
+	 * @param e
+	 * @return true, if the server says, that it doesn't know the method
+	 */
+	private static boolean isUnknownMethod(XmlRpcException e) {
+		if (e.getClass() != XmlRpcException.class) {
+			return false;
+		}
+		return e.code == METHOD_NOT_FOUND
+				|| (e.code == 0 && e.getMessage() != null && e.getMessage().startsWith(NO_SUCH_HANDLER));
+	}
+
+	/**
+	 * One call of a multicall request.
+	 */
+	public static class Call {
+		private final String method;
+		private final Object[] params;
+		private Object result;
+		private XmlRpcException fault;
+
+		/**
+		 * @param method name without handler, sample: storePage
+		 * @param params all parameters after the token
+		 */
+		public Call(String method, Object... params) {
+			this.method = method;
+			this.params = params;
+		}
+
+		Object[] params(String token) {
+			final Object[] result = new Object[params.length + 1];
+			result[0] = token;
+			System.arraycopy(params, 0, result, 1, params.length);
+			return result;
+		}
+
+		/**
+		 * @return the result
+		 * @throws XmlRpcException the fault of this call
+		 */
+		public Object getResult() throws XmlRpcException {
+			if (fault != null) {
+				throw fault;
+			}
+			return result;
+		}
+	}
+}
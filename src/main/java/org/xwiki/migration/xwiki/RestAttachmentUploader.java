@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Base64;
+
+/**
+ * Uploads large attachments through the XWiki REST API.
+ * XML-RPC needs the whole file as byte array, here the file is
+ * streamed in small chunks, so the heap used does not depend
+ * on the file size.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class RestAttachmentUploader {
+
+	private static final int BUFFER_SIZE = 64 << 10;
+
+	private final String resturl;
+	private final String authorization;
+
+	/**
+	 * @param resturl base URL of the REST API, sample: http://localhost:8080/xwiki/rest
+	 * @param user
+	 * @param pass
+	 */
+	public RestAttachmentUploader(String resturl, String user, String pass) {
+		this.resturl = resturl.endsWith("/") ? resturl.substring(0, resturl.length() - 1) : resturl;
+		try {
+			this.authorization = "Basic " + Base64.getEncoder().encodeToString((user + ":" + pass).getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Creates or replaces the attachment.
+	 *
+	 * @param space
+	 * @param page the page name without space
+	 * @param filename
+	 * @param file
+	 * @throws IOException
+	 */
+	public void upload(String space, String page, String filename, File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			upload(space, page, filename, in, file.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Creates or replaces the attachment.
+	 *
+	 * @param space
+	 * @param page the page name without space
+	 * @param filename
+	 * @param data
+	 * @throws IOException
+	 */
+	public void upload(String space, String page, String filename, byte[] data) throws IOException {
+		upload(space, page, filename, new ByteArrayInputStream(data), data.length);
+	}
+
+	private void upload(String space, String page, String filename, InputStream in, long length) throws IOException {
+		final URL url = new URL(resturl + "/wikis/xwiki/spaces/" + encode(space) + "/pages/" + encode(page)
+				+ "/attachments/" + encode(filename));
+		final HttpURLConnection con = (HttpURLConnection) url.openConnection();
+		try {
+			con.setRequestMethod("PUT");
+			con.setDoOutput(true);
+			con.setRequestProperty("Authorization", authorization);
+			con.setRequestProperty("Content-Type", "application/octet-stream");
+			// no buffering of the request body
+			con.setFixedLengthStreamingMode(length);
+			final OutputStream out = con.getOutputStream();
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read = -1;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+			out.close();
+			final int status = con.getResponseCode();
+			if (status < 200 || status >= 300) {
+				throw new IOException("Error, uploading " + filename + " to " + space + "." + page
+						+ " failed: " + status + " " + con.getResponseMessage());
+			}
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	/**
+	 * @param pageId sample: Space.Page
+	 * @return space and page name
+	 */
+	static String[] splitPageId(String pageId) {
+		final int dot = pageId.indexOf('.');
+		if (dot < 0) {
+			throw new IllegalStateException("not a page id: " + pageId);
+		}
+		return new String[] { pageId.substring(0, dot), pageId.substring(dot + 1) };
+	}
+
+	static String encode(String segment) throws IOException {
+		return URLEncoder.encode(segment, "UTF-8").replace("+", "%20");
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.codehaus.swizzle.confluence.Attachment;
+import org.codehaus.swizzle.confluence.Comment;
+import org.codehaus.swizzle.confluence.Page;
+import org.xwiki.migration.mediawiki.Config;
+
+/**
+ * Uploads through the XWiki REST API. Request bodies are streamed,
+ * attachments in chunks of the file, pages as XML written straight into
+ * the connection. REST has no batches, thus {@link #execute(List)} sends
+ * one request per call.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class RestTransport implements IUploadTransport {
+
+	private static final String XWIKI_NS = "http://www.xwiki.org";
+	private static final int CHUNK_SIZE = 64 << 10;
+
+	private final XMLInputFactory inputfactory = XMLInputFactory.newInstance();
+	private final XMLOutputFactory outputfactory = XMLOutputFactory.newInstance();
+	private final String resturl;
+	private final String authorization;
+	private final RestAttachmentUploader attachments;
+
+	/**
+	 * @param cfg
+	 */
+	public RestTransport(Config cfg) {
+		final String url = cfg.getXWikiRestUrl();
+		this.resturl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+		try {
+			this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+					(cfg.getXWikiUser() + ":" + cfg.getXWikiPass()).getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		this.attachments = new RestAttachmentUploader(resturl, cfg.getXWikiUser(), cfg.getXWikiPass());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#exists(java.lang.String)
+	 */
+	@Override
+	public boolean exists(String pageId) throws Exception {
+		final HttpURLConnection con = open(pagePath(pageId), "GET");
+		try {
+			final int status = con.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+				return false;
+			}
+			check(con, pageId);
+			return true;
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#listPages(java.lang.String)
+	 */
+	@Override
+	public Set<String> listPages(String space) throws Exception {
+		final Set<String> result = new HashSet<String>();
+		final HttpURLConnection con = open("/wikis/xwiki/spaces/" + RestAttachmentUploader.encode(space) + "/pages", "GET");
+		try {
+			if (con.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				return result;
+			}
+			check(con, space);
+			final InputStream in = con.getInputStream();
+			try {
+				result.addAll(readElements(in, "fullName", null));
+			} finally {
+				in.close();
+			}
+		} finally {
+			con.disconnect();
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storePage(org.codehaus.swizzle.confluence.Page)
+	 */
+	@Override
+	public void storePage(Page page) throws Exception {
+		final HttpURLConnection con = open(pagePath(page.getId()), "PUT");
+		try {
+			final XMLStreamWriter xml = startBody(con, "page");
+			element(xml, "title", page.getTitle());
+			element(xml, "parent", page.getParentId());
+			element(xml, "content", page.getContent());
+			endBody(xml, con);
+			check(con, page.getId());
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storeAttachment(org.codehaus.swizzle.confluence.Attachment, byte[])
+	 */
+	@Override
+	public void storeAttachment(Attachment attachment, byte[] data) throws Exception {
+		final String[] id = RestAttachmentUploader.splitPageId(attachment.getPageId());
+		attachments.upload(id[0], id[1], attachment.getFileName(), data);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storeAttachment(org.codehaus.swizzle.confluence.Attachment, java.io.File)
+	 */
+	@Override
+	public void storeAttachment(Attachment attachment, File file) throws Exception {
+		final String[] id = RestAttachmentUploader.splitPageId(attachment.getPageId());
+		attachments.upload(id[0], id[1], attachment.getFileName(), file);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#addComment(org.codehaus.swizzle.confluence.Comment)
+	 */
+	@Override
+	public void addComment(Comment comment) throws Exception {
+		final HttpURLConnection con = open(pagePath(comment.getPageId()) + "/comments", "POST");
+		try {
+			final XMLStreamWriter xml = startBody(con, "comment");
+			element(xml, "text", comment.getContent());
+			endBody(xml, con);
+			check(con, comment.getPageId());
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#hasComment(org.codehaus.swizzle.confluence.Comment)
+	 */
+	@Override
+	public boolean hasComment(Comment comment) throws Exception {
+		final HttpURLConnection con = open(pagePath(comment.getPageId()) + "/comments", "GET");
+		try {
+			if (con.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+				return false;
+			}
+			check(con, comment.getPageId());
+			final InputStream in = con.getInputStream();
+			try {
+				return readElements(in, "text", null).contains(comment.getContent());
+			} finally {
+				in.close();
+			}
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#execute(java.util.List)
+	 */
+	@Override
+	public void execute(List<UploadCall> calls) throws Exception {
+		for (UploadCall call : calls) {
+			call.execute(this);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#getTags(java.util.List)
+	 */
+	@Override
+	public Map<String, List<String>> getTags(List<String> pageIds) throws Exception {
+		final Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for (String pageId : pageIds) {
+			final HttpURLConnection con = open(pagePath(pageId) + "/tags", "GET");
+			try {
+				if (con.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+					continue;
+				}
+				check(con, pageId);
+				final InputStream in = con.getInputStream();
+				try {
+					final List<String> tags = readElements(in, "tag", "name");
+					if (!tags.isEmpty()) {
+						result.put(pageId, tags);
+					}
+				} finally {
+					in.close();
+				}
+			} finally {
+				con.disconnect();
+			}
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storeTags(java.util.Map)
+	 */
+	@Override
+	public Map<String, Exception> storeTags(Map<String, List<String>> tags) throws Exception {
+		final Map<String, Exception> faults = new HashMap<String, Exception>();
+		for (Map.Entry<String, List<String>> entry : tags.entrySet()) {
+			final HttpURLConnection con = open(pagePath(entry.getKey()) + "/tags", "PUT");
+			try {
+				final XMLStreamWriter xml = startBody(con, "tags");
+				for (String tag : entry.getValue()) {
+					xml.writeEmptyElement("tag");
+					xml.writeAttribute("name", tag);
+				}
+				endBody(xml, con);
+				check(con, entry.getKey());
+			} catch (IOException e) {
+				faults.put(entry.getKey(), e);
+			} catch (XMLStreamException e) {
+				// writing the body failed, the other pages go on
+				faults.put(entry.getKey(), e);
+			} finally {
+				con.disconnect();
+			}
+		}
+		return faults;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		// stateless
+	}
+
+	private static String pagePath(String pageId) throws IOException {
+		final String[] id = RestAttachmentUploader.splitPageId(pageId);
+		return "/wikis/xwiki/spaces/" + RestAttachmentUploader.encode(id[0]) + "/pages/" + RestAttachmentUploader.encode(id[1]);
+	}
+
+	private HttpURLConnection open(String path, String method) throws IOException {
+		final HttpURLConnection con = (HttpURLConnection) new URL(resturl + path).openConnection();
+		con.setRequestMethod(method);
+		con.setRequestProperty("Authorization", authorization);
+		con.setRequestProperty("Accept", "application/xml");
+		return con;
+	}
+
+	/**
+	 * @param con
+	 * @param root name of the root element
+	 * @return writer into the request body, which isn't buffered
+	 * @throws IOException
+	 * @throws XMLStreamException
+	 */
+	private XMLStreamWriter startBody(HttpURLConnection con, String root) throws IOException, XMLStreamException {
+		con.setDoOutput(true);
+		con.setRequestProperty("Content-Type", "application/xml; charset=UTF-8");
+		con.setChunkedStreamingMode(CHUNK_SIZE);
+		final XMLStreamWriter xml = outputfactory.createXMLStreamWriter(con.getOutputStream(), "UTF-8");
+		xml.writeStartDocument("UTF-8", "1.0");
+		xml.writeStartElement(root);
+		xml.writeDefaultNamespace(XWIKI_NS);
+		return xml;
+	}
+
+	private static void element(XMLStreamWriter xml, String name, String value) throws XMLStreamException {
+		if (value != null) {
+			xml.writeStartElement(name);
+			xml.writeCharacters(value);
+			xml.writeEndElement();
+		}
+	}
+
+	private static void endBody(XMLStreamWriter xml, HttpURLConnection con) throws XMLStreamException, IOException {
+		xml.writeEndElement();
+		xml.writeEndDocument();
+		xml.close();
+		final OutputStream out = con.getOutputStream();
+		out.close();
+	}
+
+	private static void check(HttpURLConnection con, String what) throws IOException {
+		final int status = con.getResponseCode();
+		if (status < 200 || status >= 300) {
+			throw new IOException("Error, request for " + what + " failed: " + status + " " + con.getResponseMessage());
+		}
+	}
+
+	/**
+	 * @param in
+	 * @param element local name of the elements to collect
+	 * @param attribute collect this attribute, null for the text
+	 * @return the values
+	 * @throws XMLStreamException
+	 */
+	private List<String> readElements(InputStream in, String element, String attribute) throws XMLStreamException {
+		final List<String> result = new ArrayList<String>();
+		final XMLStreamReader xml = inputfactory.createXMLStreamReader(in);
+		try {
+			while (xml.hasNext()) {
+				if (xml.next() == XMLStreamConstants.START_ELEMENT && element.equals(xml.getLocalName())) {
+					result.add(attribute == null ? xml.getElementText() : xml.getAttributeValue(null, attribute));
+				}
+			}
+		} finally {
+			xml.close();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.xwiki.xmlrpc.XWikiXmlRpcClient;
+
+/**
+ * A fixed number of logged in XML-RPC sessions.
+ * A {@link XWikiXmlRpcClient} handles only one request at a time,
+ * thus each thread borrows its own session for a whole page.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class SessionPool {
+
+	private final Logger logger = Logger.getLogger(this.getClass().getName());
+	private final List<XWikiXmlRpcClient> sessions = new ArrayList<XWikiXmlRpcClient>();
+	private final BlockingQueue<XWikiXmlRpcClient> idle;
+
+	/**
+	 * Logs in all sessions.
+	 *
+	 * @param url the XML-RPC end point
+	 * @param user
+	 * @param pass
+	 * @param size number of sessions
+	 * @throws MalformedURLException
+	 * @throws XmlRpcException
+	 */
+	public SessionPool(String url, String user, String pass, int size) throws MalformedURLException, XmlRpcException {
+		this.idle = new ArrayBlockingQueue<XWikiXmlRpcClient>(Math.max(1, size));
+		try {
+			for (int i = 0; i < Math.max(1, size); i++) {
+				final XWikiXmlRpcClient rpc = new XWikiXmlRpcClient(url);
+				rpc.login(user, pass);
+				sessions.add(rpc);
+				idle.add(rpc);
+			}
+		} catch (XmlRpcException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return number of sessions
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Waits for an idle session, give it back by {@link #release(XWikiXmlRpcClient)}.
+	 *
+	 * @return the session
+	 * @throws InterruptedException
+	 */
+	public XWikiXmlRpcClient borrow() throws InterruptedException {
+		return idle.take();
+	}
+
+	/**
+	 * @param rpc a session from {@link #borrow()}
+	 */
+	public void release(XWikiXmlRpcClient rpc) {
+		idle.offer(rpc);
+	}
+
+	/**
+	 * Logs out all sessions.
+	 */
+	public void close() {
+		for (XWikiXmlRpcClient rpc : sessions) {
+			try {
+				rpc.logout();
+			} catch (XmlRpcException e) {
+				logger.warning("logout failed: " + e.getMessage());
+			}
+		}
+		sessions.clear();
+		idle.clear();
+	}
+}
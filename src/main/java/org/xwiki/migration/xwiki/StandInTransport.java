@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.codehaus.swizzle.confluence.Attachment;
+import org.codehaus.swizzle.confluence.Comment;
+import org.codehaus.swizzle.confluence.Page;
+
+/**
+ * In-process stand-in for XWiki, which keeps the uploaded pages and tags
+ * in memory and counts the calls. Each request waits the given latency,
+ * a batch counts as one request. Used to load test the uploader
+ * (concurrency, batching) without a server.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class StandInTransport implements IUploadTransport {
+
+	private final Logger logger = Logger.getLogger(this.getClass().getName());
+	private final long latency;
+	/** page id -&gt; content */
+	private final Map<String, String> pages = new ConcurrentHashMap<String, String>();
+	/** page id -&gt; content of the comments */
+	private final Map<String, List<String>> comments = new ConcurrentHashMap<String, List<String>>();
+	/** page id -&gt; tags */
+	private final Map<String, List<String>> tags = new ConcurrentHashMap<String, List<String>>();
+	/** method -&gt; number of calls */
+	private final Map<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxactive = new AtomicInteger();
+
+	/**
+	 * @param latency milliseconds per request
+	 */
+	public StandInTransport(long latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Counts the request and waits the latency.
+	 *
+	 * @throws InterruptedException
+	 */
+	private void request() throws InterruptedException {
+		requests.incrementAndGet();
+		final int now = active.incrementAndGet();
+		try {
+			int max = maxactive.get();
+			while (now > max && !maxactive.compareAndSet(max, now)) {
+				max = maxactive.get();
+			}
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+		} finally {
+			active.decrementAndGet();
+		}
+	}
+
+	private void count(String method) {
+		AtomicLong counter = calls.get(method);
+		if (counter == null) {
+			calls.putIfAbsent(method, new AtomicLong());
+			counter = calls.get(method);
+		}
+		counter.incrementAndGet();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#exists(java.lang.String)
+	 */
+	@Override
+	public boolean exists(String pageId) throws Exception {
+		request();
+		count("exists");
+		return pages.containsKey(pageId);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#listPages(java.lang.String)
+	 */
+	@Override
+	public Set<String> listPages(String space) throws Exception {
+		request();
+		count("listPages");
+		final Set<String> result = new HashSet<String>();
+		for (String pageId : pages.keySet()) {
+			if (pageId.startsWith(space + ".")) {
+				result.add(pageId);
+			}
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storePage(org.codehaus.swizzle.confluence.Page)
+	 */
+	@Override
+	public void storePage(Page page) throws Exception {
+		request();
+		doStorePage(page);
+	}
+
+	private void doStorePage(Page page) {
+		count(UploadCall.STORE_PAGE);
+		final String content = page.getContent() != null ? page.getContent() : "";
+		bytes.addAndGet(content.length());
+		pages.put(page.getId(), content);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storeAttachment(org.codehaus.swizzle.confluence.Attachment, byte[])
+	 */
+	@Override
+	public void storeAttachment(Attachment attachment, byte[] data) throws Exception {
+		request();
+		doStoreAttachment(attachment, data.length);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storeAttachment(org.codehaus.swizzle.confluence.Attachment, java.io.File)
+	 */
+	@Override
+	public void storeAttachment(Attachment attachment, File file) throws Exception {
+		request();
+		doStoreAttachment(attachment, file.length());
+	}
+
+	private void doStoreAttachment(Attachment attachment, long size) {
+		if (!pages.containsKey(attachment.getPageId())) {
+			throw new IllegalStateException("attachment " + attachment.getFileName() + " for missing page " + attachment.getPageId());
+		}
+		count(UploadCall.ADD_ATTACHMENT);
+		bytes.addAndGet(size);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#addComment(org.codehaus.swizzle.confluence.Comment)
+	 */
+	@Override
+	public void addComment(Comment comment) throws Exception {
+		request();
+		doAddComment(comment);
+	}
+
+	private void doAddComment(Comment comment) {
+		count(UploadCall.ADD_COMMENT);
+		List<String> page = comments.get(comment.getPageId());
+		if (page == null) {
+			comments.putIfAbsent(comment.getPageId(), Collections.synchronizedList(new ArrayList<String>()));
+			page = comments.get(comment.getPageId());
+		}
+		page.add(comment.getContent());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#hasComment(org.codehaus.swizzle.confluence.Comment)
+	 */
+	@Override
+	public boolean hasComment(Comment comment) throws Exception {
+		request();
+		count("hasComment");
+		final List<String> page = comments.get(comment.getPageId());
+		return page != null && page.contains(comment.getContent());
+	}
+
+	/**
+	 * One request for all calls.
+	 */
+	@Override
+	public void execute(List<UploadCall> batch) throws Exception {
+		request();
+		count("batch");
+		for (UploadCall call : batch) {
+			try {
+				if (UploadCall.STORE_PAGE.equals(call.getMethod())) {
+					doStorePage((Page) call.getArgument());
+				} else if (UploadCall.ADD_ATTACHMENT.equals(call.getMethod())) {
+					doStoreAttachment((Attachment) call.getArgument(), call.getData().length);
+				} else {
+					doAddComment((Comment) call.getArgument());
+				}
+			} catch (RuntimeException e) {
+				call.setFault(e);
+			}
+		}
+	}
+
+	/**
+	 * One request for all pages.
+	 */
+	@Override
+	public Map<String, List<String>> getTags(List<String> pageIds) throws Exception {
+		request();
+		count("getTags");
+		final Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for (String pageId : pageIds) {
+			final List<String> current = tags.get(pageId);
+			if (current != null) {
+				result.put(pageId, new ArrayList<String>(current));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * One request for all pages.
+	 */
+	@Override
+	public Map<String, Exception> storeTags(Map<String, List<String>> newtags) throws Exception {
+		request();
+		count("storeTags");
+		for (Map.Entry<String, List<String>> entry : newtags.entrySet()) {
+			tags.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+		}
+		return Collections.emptyMap();
+	}
+
+	/**
+	 * @return number of requests, a batch counts once
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the highest number of requests at the same time
+	 */
+	public int getMaxConcurrency() {
+		return maxactive.get();
+	}
+
+	/**
+	 * @param method sample: {@link UploadCall#STORE_PAGE}
+	 * @return number of calls
+	 */
+	public long getCalls(String method) {
+		final AtomicLong counter = calls.get(method);
+		return counter != null ? counter.get() : 0;
+	}
+
+	/**
+	 * @return page id -&gt; content of all stored pages
+	 */
+	public Map<String, String> getPages() {
+		return pages;
+	}
+
+	/**
+	 * @return page id -&gt; tags
+	 */
+	public Map<String, List<String>> getTags() {
+		return tags;
+	}
+
+	/**
+	 * Logs the statistics.
+	 */
+	@Override
+	public void close() throws IOException {
+		final Map<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : calls.entrySet()) {
+			counts.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+		}
+		logger.info("stand-in: " + requests.get() + " requests, at most " + maxactive.get() + " at the same time, "
+				+ bytes.get() + " bytes, calls " + counts);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import org.codehaus.swizzle.confluence.Attachment;
+import org.codehaus.swizzle.confluence.Comment;
+import org.codehaus.swizzle.confluence.Page;
+
+/**
+ * One call of {@link IUploadTransport#execute(java.util.List)},
+ * which keeps its own fault.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class UploadCall {
+
+	public static final String STORE_PAGE = "storePage";
+	public static final String ADD_ATTACHMENT = "addAttachment";
+	public static final String ADD_COMMENT = "addComment";
+
+	private final String method;
+	private final Object argument;
+	private final byte[] data;
+	private Exception fault;
+
+	private UploadCall(String method, Object argument, byte[] data) {
+		this.method = method;
+		this.argument = argument;
+		this.data = data;
+	}
+
+	public static UploadCall storePage(Page page) {
+		return new UploadCall(STORE_PAGE, page, null);
+	}
+
+	public static UploadCall addAttachment(Attachment attachment, byte[] data) {
+		return new UploadCall(ADD_ATTACHMENT, attachment, data);
+	}
+
+	public static UploadCall addComment(Comment comment) {
+		return new UploadCall(ADD_COMMENT, comment, null);
+	}
+
+	/**
+	 * @return one of {@link #STORE_PAGE}, {@link #ADD_ATTACHMENT}, {@link #ADD_COMMENT}
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the {@link Page}, {@link Attachment} or {@link Comment}
+	 */
+	public Object getArgument() {
+		return argument;
+	}
+
+	/**
+	 * @return content of an attachment, otherwise null
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	public Exception getFault() {
+		return fault;
+	}
+
+	public void setFault(Exception fault) {
+		this.fault = fault;
+	}
+
+	/**
+	 * Executes the call on its own, for transports without batches.
+	 *
+	 * @param transport
+	 */
+	public void execute(IUploadTransport transport) {
+		try {
+			if (STORE_PAGE.equals(method)) {
+				transport.storePage((Page) argument);
+			} else if (ADD_ATTACHMENT.equals(method)) {
+				transport.storeAttachment((Attachment) argument, data);
+			} else {
+				transport.addComment((Comment) argument);
+			}
+		} catch (Exception e) {
+			fault = e;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Limits the number of pages uploaded at the same time and adapts
+ * the limit to the server (additive increase, multiplicative decrease):
+ * every fast request raises the limit by 1/limit, so the limit grows
+ * by one per round of requests. A failed request or one slower than the
+ * latency target halves it, at most once per target interval, since all
+ * requests in flight see the same overload.
+ *
+ * The latencies of the last {@link #WINDOW} requests are kept for the
+ * percentiles, which are logged periodically.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class UploadGovernor {
+
+	static final int WINDOW = 1024;
+	private static final long LOG_INTERVAL = 30000;
+
+	private final Logger logger = Logger.getLogger(this.getClass().getName());
+	private final int min;
+	private final int max;
+	private final long target;
+	private final long[] samples = new long[WINDOW];
+	private double limit;
+	private int inflight = 0;
+	private long count = 0;
+	private long errors = 0;
+	private long lastdecrease = 0;
+	private long lastlog = System.currentTimeMillis();
+
+	/**
+	 * @param min lowest limit
+	 * @param max highest limit, usually the number of sessions
+	 * @param target latency target in milliseconds, 0 keeps the limit at max
+	 */
+	public UploadGovernor(int min, int max, long target) {
+		this.max = Math.max(1, max);
+		this.min = Math.max(1, Math.min(min, this.max));
+		this.target = target;
+		this.limit = target > 0 ? this.min : this.max;
+	}
+
+	/**
+	 * Waits until the page may be uploaded.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while (inflight >= (int) limit) {
+			wait();
+		}
+		inflight++;
+	}
+
+	/**
+	 * Call it once for every {@link #acquire()}, after the page is uploaded.
+	 */
+	public synchronized void release() {
+		inflight--;
+		notifyAll();
+	}
+
+	/**
+	 * Records a request and adjusts the limit.
+	 *
+	 * @param started start of the request by {@link System#nanoTime()}
+	 * @param failed true, if the request threw an exception
+	 */
+	public synchronized void sample(long started, boolean failed) {
+		final long millis = (System.nanoTime() - started) / 1000000;
+		samples[(int) (count++ % WINDOW)] = millis;
+		if (failed) {
+			errors++;
+		}
+		final long now = System.currentTimeMillis();
+		if (target > 0) {
+			if (failed || millis > target) {
+				if (now - lastdecrease > target) {
+					limit = Math.max(min, limit / 2);
+					lastdecrease = now;
+				}
+			} else {
+				limit = Math.min(max, limit + 1 / limit);
+				notifyAll();
+			}
+		}
+		if (now - lastlog >= LOG_INTERVAL) {
+			lastlog = now;
+			logStatistics();
+		}
+	}
+
+	/**
+	 * @return the current limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	/**
+	 * Logs concurrency, latency percentiles of the recent requests and errors.
+	 */
+	public synchronized void logStatistics() {
+		final int size = (int) Math.min(count, WINDOW);
+		final long[] sorted = Arrays.copyOf(samples, size);
+		Arrays.sort(sorted);
+		logger.info("upload concurrency " + (int) limit + " (in flight " + inflight + "), latency p50/p90/p99 "
+				+ percentile(sorted, 50) + "/" + percentile(sorted, 90) + "/" + percentile(sorted, 99)
+				+ " ms, " + count + " requests, " + errors + " errors");
+	}
+
+	private static long percentile(long[] sorted, int p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)];
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only log of the completed upload steps, one line per step:
+ * step, page id and for attachments the file name, separated by tabs.
+ * After a crash the upload is resumed by skipping all recorded steps.
+ * A step may carry a fingerprint of the uploaded content as fourth
+ * column (the file name column is empty then for pages), the last
+ * recorded fingerprint of a step counts. Delta uploads compare it
+ * with the current content, see {@link #isCurrent(String, String, String, String)}.
+ *
+ * Each line is flushed as soon as the server confirmed the step.
+ * A line cut off by a crash is removed, when the journal is opened.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class UploadJournal implements Closeable {
+
+	public static final String SPACE = "space";
+	public static final String PAGE = "page";
+	public static final String ATTACHMENT = "attachment";
+	public static final String TAGS = "tags";
+	public static final String ORIGINAL = "original";
+	public static final String COMMENT = "comment";
+	/** all steps of the page are completed */
+	public static final String DONE = "done";
+
+	private static final String HASH_ALGORITHM = "SHA-1";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/** step key -&gt; fingerprint, empty if none was recorded */
+	private final Map<String, String> steps = new ConcurrentHashMap<String, String>();
+	private final FileOutputStream fos;
+	private final Writer writer;
+
+	/**
+	 * Reads the recorded steps and opens the journal for appending.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public UploadJournal(File file) throws IOException {
+		if (file.exists()) {
+			truncateIncompleteLine(file);
+			load(file);
+		}
+		this.fos = new FileOutputStream(file, true);
+		this.writer = new OutputStreamWriter(fos, "UTF-8");
+	}
+
+	/**
+	 * Removes the last line, if it isn't terminated.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	static void truncateIncompleteLine(File file) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long length = raf.length();
+			while (length > 0) {
+				raf.seek(length - 1);
+				if (raf.read() == '\n') {
+					break;
+				}
+				length--;
+			}
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void load(File file) throws IOException {
+		final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16);
+		try {
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				final String[] parts = line.split("\t", -1);
+				if (parts.length == 4) {
+					steps.put(key(parts[0], parts[1], parts[2].length() > 0 ? parts[2] : null), parts[3]);
+				} else if (line.length() > 0) {
+					steps.put(line, "");
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+
+	/**
+	 * @param step
+	 * @param pageId
+	 * @return true, if the step is recorded
+	 */
+	public boolean isDone(String step, String pageId) {
+		return isDone(step, pageId, null);
+	}
+
+	/**
+	 * @param step
+	 * @param pageId
+	 * @param name file name of an attachment, otherwise null
+	 * @return true, if the step is recorded
+	 */
+	public boolean isDone(String step, String pageId, String name) {
+		return steps.containsKey(key(step, pageId, name));
+	}
+
+	/**
+	 * @param step
+	 * @param pageId
+	 * @param name file name of an attachment, otherwise null
+	 * @param fingerprint of the current content
+	 * @return true, if the step is recorded with the same fingerprint
+	 */
+	public boolean isCurrent(String step, String pageId, String name, String fingerprint) {
+		return fingerprint.equals(steps.get(key(step, pageId, name)));
+	}
+
+	/**
+	 * @param step
+	 * @param pageId
+	 * @throws IOException
+	 */
+	public void record(String step, String pageId) throws IOException {
+		record(step, pageId, null);
+	}
+
+	/**
+	 * Appends the step and flushes it to the file.
+	 *
+	 * @param step
+	 * @param pageId
+	 * @param name file name of an attachment, otherwise null
+	 * @throws IOException
+	 */
+	public void record(String step, String pageId, String name) throws IOException {
+		record(step, pageId, name, null);
+	}
+
+	/**
+	 * Appends the step with the fingerprint of its content and flushes it to the file.
+	 *
+	 * @param step
+	 * @param pageId
+	 * @param name file name of an attachment, otherwise null
+	 * @param fingerprint null, if there is none
+	 * @throws IOException
+	 */
+	public synchronized void record(String step, String pageId, String name, String fingerprint) throws IOException {
+		final String key = key(step, pageId, name);
+		if (fingerprint == null) {
+			writer.write(key);
+		} else {
+			writer.write(step + '\t' + pageId + '\t' + (name == null ? "" : name) + '\t' + fingerprint);
+		}
+		writer.write('\n');
+		writer.flush();
+		steps.put(key, fingerprint == null ? "" : fingerprint);
+	}
+
+	/**
+	 * @param parts content of a step, null parts are allowed
+	 * @return hex encoded hash of all parts
+	 */
+	public static String fingerprint(String... parts) {
+		try {
+			final MessageDigest md = MessageDigest.getInstance(HASH_ALGORITHM);
+			for (String part : parts) {
+				if (part != null) {
+					md.update(part.getBytes("UTF-8"));
+				}
+				// separator, so "ab"+"c" differs from "a"+"bc"
+				md.update((byte) 0);
+			}
+			final byte[] digest = md.digest();
+			final char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+				hex[2 * i + 1] = HEX[digest[i] & 0xf];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String key(String step, String pageId, String name) {
+		return name == null ? step + '\t' + pageId : step + '\t' + pageId + '\t' + name;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		writer.flush();
+		fos.getFD().sync();
+		writer.close();
+	}
+}
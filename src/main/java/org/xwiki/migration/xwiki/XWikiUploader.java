@@ -15,38 +15,48 @@
  */
 package org.xwiki.migration.xwiki;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.text.DateFormat;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.apache.xmlrpc.XmlRpcException;
 import org.codehaus.swizzle.confluence.Attachment;
 import org.codehaus.swizzle.confluence.Comment;
-import org.codehaus.swizzle.confluence.ConfluenceException;
 import org.codehaus.swizzle.confluence.Page;
-import org.codehaus.swizzle.confluence.SwizzleException;
 import org.wikimodel.wem.xwiki.xwiki20.XWikiSerializer2;
 import org.xwiki.migration.mediawiki.Config;
-import org.xwiki.xmlrpc.XWikiXmlRpcClient;
-import org.xwiki.xmlrpc.model.XWikiObject;
-import org.xwiki.xmlrpc.model.XWikiObjectSummary;
+import org.xwiki.migration.mediawiki.MediaWikiConverter;
+import org.xwiki.migration.mediawiki.output.FolderPageSource;
+import org.xwiki.migration.mediawiki.output.IPageSource;
+import org.xwiki.migration.mediawiki.output.PackPageSource;
+import org.xwiki.migration.mediawiki.output.QueuePageSource;
+import org.xwiki.migration.mediawiki.xmldump.IPageHandler;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
 
 /**
  * MAIN CLASS
@@ -54,9 +64,32 @@ import org.xwiki.xmlrpc.model.XWikiObjectSummary;
  * @author mkirst(at portolancs dot com)
  */
 public class XWikiUploader {
+
+    private static final String IMAGE_PREFIX = "[[image:";
+    /** pages per request, when reconciling tags */
+    private static final int TAG_BATCH = 100;
+    /** longest wait before a retry, in ms */
+    private static final long MAX_RETRY_DELAY = 60000;
     
-    private final Config cfg = new Config();
+    private final Config cfg;
     private final Logger logger = Logger.getLogger(this.getClass().getName());
+    private UploadGovernor governor;
+    private UploadJournal journal;
+    private AttachmentStore attachments;
+    private IUploadTransport transport;
+    private ExecutorService executor;
+    private Semaphore inflight;
+    private IPageSource source;
+    private Thread converter;
+    private volatile Exception conversionFailure;
+    private boolean delta;
+    private int retries;
+    private long retrydelay;
+    /** ids of the pages found on the server, only filled for delta uploads */
+    private final Set<String> existing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    /** name space -&gt; page id -&gt; tags to add, after the page is stored, at most {@link #TAG_BATCH} pages each */
+    private final Map<String, Map<String, PendingTags>> tags = new ConcurrentHashMap<String, Map<String, PendingTags>>();
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
     
     public static void main(String[] args) throws MalformedURLException {
 
@@ -69,298 +102,976 @@ public class XWikiUploader {
         }
     }
 
-    private void run() throws Exception {
-        // URL of the xwiki instance
-        String url = "http://119.29.101.119:10007/xwiki/xmlrpc/confluence";
+    public XWikiUploader() {
+    	this(new Config());
+    }
 
-        // Perform Login & Authentication using above url address
+    /**
+     * @param cfg
+     */
+    public XWikiUploader(Config cfg) {
+    	this.cfg = cfg;
+    }
+
+    /**
+     * @param level
+     */
+    public void setLogLevel(Level level) {
+    	logger.setLevel(level);
+    }
 
-        XWikiXmlRpcClient rpc = new XWikiXmlRpcClient(url);
-        rpc.login(cfg.getXWikiUser(), cfg.getXWikiPass());
+    /**
+     * Uploads the pages through the {@link IUploadTransport} on a pool of
+     * threads, each page on one thread, so the requests of a page keep their order. The reader blocks,
+     * as soon as the configured number of pages is in flight.
+     * The {@link UploadGovernor} decides, how many threads are busy.
+     * The WebHome of a space is created, before the first page of
+     * the space is submitted.
+     * Steps recorded in the {@link UploadJournal} by an earlier run are skipped.
+     * With upload.batch.pages set, several pages are uploaded as one task,
+     * see {@link #uploadBatch(List)}.
+     * A delta upload lists the pages of each space once and only sends
+     * the steps, whose content changed or which are missing on the server,
+     * see {@link #isUploaded(String, String, String, String)}.
+     * Tags are placed in groups of the stored pages, see {@link #collectTags(PendingPage, Page)}.
+     * In direct mode the pages come from a converter thread, see {@link #createSource()}.
+     *
+     * @throws Exception the first failed upload
+     */
+    public void run() throws Exception {
+        if (transport == null) {
+        	transport = createTransport();
+        }
+        final int threads = Math.max(1, cfg.getUploadThreads());
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        	private final AtomicInteger counter = new AtomicInteger();
 
-        File targetpath = new File(cfg.getTargetPath());
-        File[] folders = targetpath.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                File f = new File(dir, name);
-                return f.isDirectory();
-            }
+        	@Override
+        	public Thread newThread(Runnable r) {
+        		return new Thread(r, "upload-" + counter.incrementAndGet());
+        	}
         });
-        for (File namespacepath : folders) {
-        	uploadNameSpace(rpc, namespacepath);
-        }
+        final int batchsize = cfg.getUploadBatchPages();
+        // at least one batch per thread, otherwise batches are sent one after the other
+        inflight = new Semaphore(Math.max(cfg.getUploadInFlight(), batchsize * threads));
+        governor = new UploadGovernor(cfg.getUploadMinThreads(), threads, cfg.getUploadLatencyTarget());
+        final AtomicInteger skipped = new AtomicInteger();
+        delta = cfg.isUploadDelta();
+        retries = cfg.getUploadRetries();
+        retrydelay = cfg.getUploadRetryDelay();
+        new File(cfg.getTargetPath()).mkdirs();
+        journal = new UploadJournal(new File(cfg.getTargetPath(), cfg.fileUploadJournal()));
+        attachments = new AttachmentStore(new File(cfg.getTargetPath(), cfg.fileAttachmentStore()));
 
-        rpc.logout();
+        source = createSource();
+        try {
+        	final List<PendingPage> batch = new ArrayList<PendingPage>();
+        	source.readPages(new IPageHandler() {
+        		private final Set<String> spaces = new HashSet<String>();
+        		private String namespace = null;
+
+        		@Override
+        		public void handlePage(final SimPage page) throws Exception {
+        			checkFailure();
+        			if (!page.getNamespace().equals(namespace)) {
+        				namespace = page.getNamespace();
+        				logger.info("Uploading name space " + namespace + " ...");
+        			}
+        			if (spaces.add(page.getNamespace())) {
+        				if (delta) {
+        					listPages(page.getNamespace());
+        				}
+        				storeWebHome(page.getNamespace());
+        			}
+        			final String fingerprint = fingerprint(source, page);
+        			if (isUploaded(UploadJournal.DONE, pageId(page), null, fingerprint)) {
+        				skipped.incrementAndGet();
+        				return;
+        			}
+        			batch.add(new PendingPage(page, linkAttachments(source, page), fingerprint));
+        			if (batch.size() >= Math.max(1, batchsize)) {
+        				submit(new ArrayList<PendingPage>(batch), batchsize > 0);
+        				batch.clear();
+        			}
+        		}
+        	});
+        	if (!batch.isEmpty()) {
+        		submit(batch, batchsize > 0);
+        	}
+        	awaitUploads();
+        } finally {
+        	awaitUploads();
+        	// also for the pages stored before a failure
+        	reconcileTags();
+        	source.close();
+        	if (converter != null) {
+        		converter.join();
+        	}
+        	transport.close();
+        	journal.close();
+        	attachments.close();
+        }
+        if (conversionFailure != null) {
+        	throw new IllegalStateException("conversion failed", conversionFailure);
+        }
+        governor.logStatistics();
+        logger.info(skipped.get() + " pages skipped, uploaded by an earlier run" + (delta ? " and unchanged." : "."));
+        checkFailure();
         logger.info("Done.");
     }
 
+    /**
+     * @return the transport selected by upload.transport
+     * @throws Exception
+     */
+    private IUploadTransport createTransport() throws Exception {
+    	final String name = cfg.getUploadTransport();
+    	if ("rest".equals(name)) {
+    		return new RestTransport(cfg);
+    	} else if ("standin".equals(name)) {
+    		return new StandInTransport(cfg.getUploadTransportLatency());
+    	}
+    	return new XmlRpcTransport(cfg);
+    }
+
+    /**
+     * In direct mode (upload.direct) the dump is converted on its own
+     * thread, the pages flow through a bounded queue into the upload,
+     * without being written to and read back from the target path.
+     *
+     * @return the source of the pages
+     * @throws IOException
+     */
+    private IPageSource createSource() throws IOException {
+    	if (!cfg.isUploadDirect()) {
+    		return "pack".equals(cfg.getTargetFormat()) ? new PackPageSource(cfg) : new FolderPageSource(cfg);
+    	}
+    	final MediaWikiConverter conversion = new MediaWikiConverter(cfg);
+    	conversion.setLogLevel(logger.getLevel());
+    	final QueuePageSource queue = new QueuePageSource(cfg, cfg.isUploadDirectAudit() ? conversion.createPageWriter() : null);
+    	converter = new Thread(new Runnable() {
+    		@Override
+    		public void run() {
+    			Exception outcome = null;
+    			try {
+    				conversion.convert(queue.getWriter());
+    			} catch (Exception e) {
+    				outcome = e;
+    			} catch (Error e) {
+    				outcome = new IllegalStateException(e);
+    			}
+    			conversionFailure = outcome;
+    			try {
+    				queue.finish(outcome); // the failure is set before the pages end
+    			} catch (IOException e) {
+    				// the upload has stopped already
+    			}
+    		}
+    	}, "converter");
+    	converter.start();
+    	return queue;
+    }
+
+    private void awaitUploads() throws InterruptedException {
+    	executor.shutdown();
+    	while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+    		// keep on waiting
+    	}
+    }
+
+    /**
+     * Uploads the pages as one task on one upload thread.
+     *
+     * @param pages
+     * @param batch true to use {@link #uploadBatch(List)}
+     * @throws InterruptedException
+     */
+    private void submit(final List<PendingPage> pages, final boolean batch) throws InterruptedException {
+    	inflight.acquire(pages.size());
+    	executor.execute(new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				if (failure.get() != null) {
+    					return;
+    				}
+    				governor.acquire();
+    				try {
+    					if (batch) {
+    						uploadBatch(pages);
+    					} else {
+    						for (PendingPage p : pages) {
+    							uploadPage(p);
+    						}
+    					}
+    				} finally {
+    					governor.release();
+    				}
+    			} catch (Exception e) {
+    				failure.compareAndSet(null, new IllegalStateException("failed to upload page " + pages.get(0).page.getTitle()
+    						+ (pages.size() > 1 ? " (or one of the next " + (pages.size() - 1) + ")" : ""), e));
+    			} finally {
+    				inflight.release(pages.size());
+    			}
+    		}
+    	});
+    }
+
+    /**
+     * Sends storePage, the original text and comment of all pages
+     * as one batch (a system.multicall request for XML-RPC),
+     * the attachments follow one by one.
+     *
+     * @param pages
+     * @throws Exception
+     */
+    private void uploadBatch(List<PendingPage> pages) throws Exception {
+    	final List<UploadCall> calls = new ArrayList<UploadCall>();
+    	final List<String[]> steps = new ArrayList<String[]>();
+    	final List<Page> xpages = new ArrayList<Page>();
+    	for (PendingPage p : pages) {
+    		final SimPage simpage = p.page;
+    		if (!p.links.isEmpty()) {
+    			simpage.setText(rewriteImages(simpage.getText(), p.links));
+    		}
+    		final Page page = createPage(simpage);
+    		final String pageId = page.getId();
+    		xpages.add(page);
+    		String fingerprint = fingerprint(page);
+    		if (!isUploaded(UploadJournal.PAGE, pageId, null, fingerprint)) {
+    			calls.add(UploadCall.storePage(page));
+    			steps.add(new String[] { UploadJournal.PAGE, pageId, fingerprint });
+    		}
+    		final byte[] original = originalData(simpage);
+    		fingerprint = UploadJournal.fingerprint(simpage.getOriginal());
+    		if (original != null && !isUploaded(UploadJournal.ORIGINAL, pageId, null, fingerprint)) {
+    			calls.add(UploadCall.addAttachment(createOriginalAttachment(simpage, page, original), original));
+    			steps.add(new String[] { UploadJournal.ORIGINAL, pageId, fingerprint });
+    		}
+    		final Comment comment = createComment(simpage, page);
+    		fingerprint = UploadJournal.fingerprint(comment.getContent());
+    		if (cfg.isCreateXwikiComment() && !isUploaded(UploadJournal.COMMENT, pageId, null, fingerprint)) {
+    			calls.add(UploadCall.addComment(comment));
+    			steps.add(new String[] { UploadJournal.COMMENT, pageId, fingerprint });
+    		}
+    	}
+
+    	// not repeated as a whole: the server may have applied it, but the response got lost
+    	final long started = System.nanoTime();
+    	Exception lost = null;
+    	try {
+    		transport.execute(calls);
+    		governor.sample(started, false);
+    	} catch (Exception e) {
+    		governor.sample(started, true);
+    		lost = e;
+    		for (UploadCall call : calls) {
+    			call.setFault(e);
+    		}
+    	}
+    	// first the calls done by the server, thus a failing retry can't make them repeat
+    	for (int i = 0; i < calls.size(); i++) {
+    		if (calls.get(i).getFault() == null) {
+    			journal.record(steps.get(i)[0], steps.get(i)[1], null, steps.get(i)[2]);
+    		}
+    	}
+    	if (lost != null && !calls.isEmpty()) {
+    		if (retries < 1) {
+    			throw new IllegalStateException("batch of " + pages.size() + " pages failed", lost);
+    		}
+    		logger.warning("batch of " + pages.size() + " pages failed, each call is repeated: " + lost.getMessage());
+    		backoff(1);
+    	}
+    	// in order, a failed storePage is repeated before the attachments of the page
+    	for (int i = 0; i < calls.size(); i++) {
+    		if (calls.get(i).getFault() != null) {
+    			resend(calls.get(i), steps.get(i)[0] + " of " + steps.get(i)[1], lost == null);
+    			journal.record(steps.get(i)[0], steps.get(i)[1], null, steps.get(i)[2]);
+    		}
+    	}
+    	for (int i = 0; i < pages.size(); i++) {
+    		storeAttachments(source, pages.get(i).page, xpages.get(i), pages.get(i).links);
+    		if (!collectTags(pages.get(i), xpages.get(i))) {
+    			journal.record(UploadJournal.DONE, xpages.get(i).getId(), null, pages.get(i).fingerprint);
+    		}
+    	}
+    }
+
+    /**
+     * Without delta upload a recorded step is done. With delta upload it
+     * is done, if the page exists on the server and the recorded
+     * fingerprint matches the current content.
+     *
+     * @param step
+     * @param pageId
+     * @param name file name of an attachment, otherwise null
+     * @param fingerprint of the current content
+     * @return true, if the step can be skipped
+     */
+    private boolean isUploaded(String step, String pageId, String name, String fingerprint) {
+    	if (!delta) {
+    		return journal.isDone(step, pageId, name);
+    	}
+    	return existing.contains(pageId) && journal.isCurrent(step, pageId, name, fingerprint);
+    }
+
+    /**
+     * Covers everything, which is uploaded for the page. Attachments
+     * are compared by size and modification time.
+     *
+     * @param source
+     * @param simpage
+     * @return fingerprint of the page
+     */
+    private String fingerprint(IPageSource source, SimPage simpage) {
+    	final List<String> parts = new ArrayList<String>();
+    	parts.add(simpage.getTitle());
+    	parts.add(simpage.getRevision() != null ? Long.toString(simpage.getRevision().getTime()) : null);
+    	parts.add(simpage.getUsername());
+    	parts.add(simpage.getText());
+    	parts.add(simpage.getOriginal());
+    	parts.addAll(Arrays.asList(simpage.getCategories()));
+    	parts.add(null);
+    	for (String filename : simpage.getFiles()) {
+    		parts.add(filename);
+    		parts.add(fingerprint(source.getAttachment(simpage, filename)));
+    	}
+    	return UploadJournal.fingerprint(parts.toArray(new String[parts.size()]));
+    }
+
+    private static String fingerprint(Page page) {
+    	return UploadJournal.fingerprint(page.getTitle(), page.getParentId(), page.getContent(),
+    			page.getModifier(), page.getModified() != null ? Long.toString(page.getModified().getTime()) : null);
+    }
+
+    private static String fingerprint(File file) {
+    	return file.length() + "-" + file.lastModified();
+    }
+
+    private void checkFailure() throws Exception {
+    	final Exception e = failure.get();
+    	if (e != null) {
+    		throw e;
+    	}
+    }
+
+    /**
+     * Creates an empty WebHome as parent of the uploaded pages,
+     * unless the space already has one.
+     * The dump may contain the real WebHome, which replaces it later.
+     *
+     * @param namespace
+     * @throws Exception
+     */
+    /**
+     * Remembers the pages of the space, which exist on the server,
+     * one request per space. An error stops the upload, a delta upload
+     * without the list would upload all pages again.
+     *
+     * @param namespace
+     * @throws Exception
+     */
+    private void listPages(final String namespace) throws Exception {
+    	governor.acquire();
+    	try {
+    		send(new IRequest() {
+    			@Override
+    			public void send() throws Exception {
+    				existing.addAll(transport.listPages(namespace));
+    			}
+    		}, "listing pages of " + namespace);
+    	} finally {
+    		governor.release();
+    	}
+    }
+
+    private void storeWebHome(String namespace) throws Exception {
+    	final String pageId = namespace + ".WebHome";
+    	if (journal.isDone(UploadJournal.SPACE, pageId)) {
+    		return;
+    	}
+    	final boolean[] exists = new boolean[1];
+    	governor.acquire();
+    	try {
+    		// only a page reported missing is created, an error stops the upload
+    		send(new IRequest() {
+    			@Override
+    			public void send() throws Exception {
+    				exists[0] = transport.exists(pageId);
+    			}
+    		}, "looking for " + pageId);
+    		if (!exists[0]) {
+    			logger.fine("storing page " + pageId);
+    			Page page = new Page();
+    			page.setId(pageId);
+    			page.setSpace(namespace);
+    			page.setTitle(namespace);
+    			page.setContent("");
+    			sendPage(page);
+    		}
+    	} finally {
+    		governor.release();
+    	}
+    	journal.record(UploadJournal.SPACE, pageId);
+    }
+
+    /**
+     * Stores the page, see {@link #send(IRequest, String)}.
+     *
+     * @param page
+     * @throws Exception
+     */
+    private void sendPage(final Page page) throws Exception {
+    	send(new IRequest() {
+    		@Override
+    		public void send() throws Exception {
+    			transport.storePage(page);
+    		}
+    	}, "storing page " + page.getId());
+    }
+
+    /**
+     * Adds the attachment, see {@link #send(IRequest, String)}.
+     *
+     * @param attachment
+     * @param data
+     * @throws Exception
+     */
+    private void sendAttachment(final Attachment attachment, final byte[] data) throws Exception {
+    	send(new IRequest() {
+    		@Override
+    		public void send() throws Exception {
+    			transport.storeAttachment(attachment, data);
+    		}
+    	}, "adding attachment " + attachment.getFileName() + " to " + attachment.getPageId());
+    }
+
+    /**
+     * Adds the attachment file, see {@link #send(IRequest, String)}.
+     *
+     * @param attachment
+     * @param file
+     * @throws Exception
+     */
+    private void sendAttachment(final Attachment attachment, final File file) throws Exception {
+    	send(new IRequest() {
+    		@Override
+    		public void send() throws Exception {
+    			transport.storeAttachment(attachment, file);
+    		}
+    	}, "adding attachment " + attachment.getFileName() + " to " + attachment.getPageId());
+    }
+
+    /**
+     * Sends the request and reports its latency to the governor.
+     * A failed request is repeated up to upload.retries times, thus only
+     * a page failing again and again stops the upload. The caller must
+     * hold a governor permit: it is given back while waiting for the
+     * retry, so the retry waits for the limit reduced by the failure.
+     *
+     * @param request
+     * @param what description for the log
+     * @throws Exception the failure of the last attempt
+     */
+    private void send(IRequest request, String what) throws Exception {
+    	send(request, what, 0);
+    }
+
+    /**
+     * @param request
+     * @param what
+     * @param attempt number of failed attempts so far
+     * @throws Exception
+     */
+    private void send(IRequest request, String what, int attempt) throws Exception {
+    	while (true) {
+    		final long started = System.nanoTime();
+    		try {
+    			request.send();
+    			governor.sample(started, false);
+    			return;
+    		} catch (Exception e) {
+    			governor.sample(started, true);
+    			if (attempt >= retries) {
+    				throw e;
+    			}
+    			attempt++;
+    			logger.warning(what + " failed, retry " + attempt + " of " + retries + ": " + e.getMessage());
+    			backoff(attempt);
+    		}
+    	}
+    }
+
+    /**
+     * Repeats a call, which failed within a batch, on its own.
+     * A comment is only repeated, if the page doesn't have it yet.
+     *
+     * @param call
+     * @param what description for the log
+     * @param wait false, if the caller has waited for the retry already
+     * @throws Exception
+     */
+    private void resend(final UploadCall call, String what, boolean wait) throws Exception {
+    	if (wait) {
+    		if (retries < 1) {
+    			throw new IllegalStateException(what + " failed", call.getFault());
+    		}
+    		governor.sample(System.nanoTime(), true);
+    		logger.warning(what + " failed, retry 1 of " + retries + ": " + call.getFault().getMessage());
+    		backoff(1);
+    	}
+    	try {
+    		send(new IRequest() {
+    			@Override
+    			public void send() throws Exception {
+    				call.setFault(null);
+    				if (UploadCall.ADD_COMMENT.equals(call.getMethod()) && transport.hasComment((Comment) call.getArgument())) {
+    					return;
+    				}
+    				call.execute(transport);
+    				if (call.getFault() != null) {
+    					throw call.getFault();
+    				}
+    			}
+    		}, what, 1);
+    	} catch (Exception e) {
+    		throw new IllegalStateException(what + " failed", e);
+    	}
+    }
+
+    /**
+     * Gives the governor permit back for upload.retry.delay, doubled on each attempt.
+     *
+     * @param attempt 1 for the first retry
+     * @throws InterruptedException
+     */
+    private void backoff(int attempt) throws InterruptedException {
+    	governor.release();
+    	try {
+    		Thread.sleep(Math.min(MAX_RETRY_DELAY, retrydelay << Math.min(attempt - 1, 16)));
+    	} finally {
+    		governor.acquire();
+    	}
+    }
+
+    /**
+     * Images with the same content as an image of an earlier page are
+     * not uploaded again, the page links to the attachment of the earlier page.
+     * Called in reading order, so the first page referencing a binary owns it.
+     *
+     * @param source
+     * @param simpage
+     * @return file name -&gt; reference of the attachment to link to
+     * @throws IOException
+     */
+    private Map<String, String> linkAttachments(IPageSource source, SimPage simpage) throws IOException {
+    	if (!cfg.isUploadDedup() || simpage.sizeFiles() < 1) {
+    		return Collections.emptyMap();
+    	}
+    	final Map<String, String> links = new HashMap<String, String>();
+    	for (String filename : simpage.getFiles()) {
+    		if (simpage.getText().indexOf(IMAGE_PREFIX + filename) < 0) {
+    			continue; // only images can point to another page
+    		}
+    		final File fa = source.getAttachment(simpage, filename);
+    		if (!fa.canRead() || fa.length() < 1) {
+    			continue;
+    		}
+    		final String reference = attachments.claim(fa, pageId(simpage), filename);
+    		if (reference != null) {
+    			links.put(filename, reference);
+    		}
+    	}
+    	return links;
+    }
+
+    /**
+     * @param text
+     * @param links file name -&gt; reference
+     * @return the text, images point to the referenced attachments
+     */
+    private static String rewriteImages(String text, Map<String, String> links) {
+    	for (Map.Entry<String, String> link : links.entrySet()) {
+    		final Matcher m = Pattern.compile(Pattern.quote(IMAGE_PREFIX + link.getKey()) + "(?=\\|\\||\\]\\]|>>)").matcher(text);
+    		text = m.replaceAll(Matcher.quoteReplacement(IMAGE_PREFIX + link.getValue()));
+    	}
+    	return text;
+    }
+
 	/**
-	 * @param rpc
-	 * @param namespacepath
-	 * @throws SwizzleException
-	 * @throws ConfluenceException
-	 * @throws IOException
-	 * @throws XmlRpcException
-	 * @throws FileNotFoundException
-	 * @throws UnsupportedEncodingException
+	 * @param pending
+	 * @throws Exception
 	 */
-	private void uploadNameSpace(XWikiXmlRpcClient rpc, File namespacepath)
-					throws SwizzleException, ConfluenceException, IOException,
-					XmlRpcException, FileNotFoundException,
-					UnsupportedEncodingException {
-		String namespace = namespacepath.getName();
-		logger.info("Uploading name space " + namespace + " ...");
-		File[] folders = namespacepath.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File dir, String name) {
-                File f = new File(dir, name);
-                return f.isDirectory();
-            }
-        });
-        
-        for (File pagefolder : folders ) {
-            Page page = storePage(rpc, namespace, pagefolder);
-            storeAttachments(rpc, pagefolder, page);
-            storeTags(rpc, pagefolder, page);
-            storeOriginalTextAsAttachment(rpc, pagefolder, page);
-            createImportComment(rpc, pagefolder, page);
-        }
+	private void uploadPage(PendingPage pending) throws Exception {
+		final SimPage simpage = pending.page;
+		if (!pending.links.isEmpty()) {
+			simpage.setText(rewriteImages(simpage.getText(), pending.links));
+		}
+		Page page = storePage(simpage);
+		storeAttachments(source, simpage, page, pending.links);
+		storeOriginalTextAsAttachment(simpage, page);
+		createImportComment(simpage, page);
+		if (!collectTags(pending, page)) {
+			journal.record(UploadJournal.DONE, page.getId(), null, pending.fingerprint);
+		}
+	}
+
+	/**
+	 * @param simpage
+	 * @return the XWiki page id
+	 */
+	private static String pageId(SimPage simpage) {
+		return simpage.getNamespace() + "." + XWikiSerializer2.clearName(simpage.getTitle(), true, true);
 	}
 
     /**
-     * @param rpc
-     * @param pagefolder
+     * @param simpage
      * @param page
-     * @throws XmlRpcException
-     * @throws FileNotFoundException
-     * @throws UnsupportedEncodingException
-     * @throws IOException
+     * @throws Exception
      */
-    private void createImportComment(XWikiXmlRpcClient rpc, File pagefolder, Page page) throws XmlRpcException, FileNotFoundException, UnsupportedEncodingException, IOException {
-    	if (!cfg.isCreateXwikiComment()) {
+    private void createImportComment(SimPage simpage, Page page) throws Exception {
+    	final Comment comment = createComment(simpage, page);
+    	final String fingerprint = UploadJournal.fingerprint(comment.getContent());
+    	if (!cfg.isCreateXwikiComment() || isUploaded(UploadJournal.COMMENT, page.getId(), null, fingerprint)) {
     		return; // nothing to do.
     	}
+		send(new IRequest() {
+			private boolean attempted = false;
+
+			@Override
+			public void send() throws Exception {
+				// the failed attempt may have added the comment anyway
+				if (attempted && transport.hasComment(comment)) {
+					return;
+				}
+				attempted = true;
+				transport.addComment(comment);
+			}
+		}, "adding comment to " + page.getId());
+		journal.record(UploadJournal.COMMENT, page.getId(), null, fingerprint);
+	}
+
+    private Comment createComment(SimPage simpage, Page page) {
     	Comment comment = new Comment();
     	comment.setPageId(page.getId());
     	DateFormat dformater = DateFormat.getDateInstance(DateFormat.MEDIUM, Locale.getDefault());
-		String d = dformater.format(getTimestampFromPage(pagefolder));
-		String u = getUserFromPage(pagefolder);
+		String d = dformater.format(simpage.getRevision());
+		String u = simpage.getUsername();
 		comment.setContent(MessageFormat.format(cfg.getCommentMessage(), d, u));
-		rpc.addComment(comment);
-	}
+		return comment;
+    }
 
 	/**
-     * @param rpc
-     * @param namespace
-     * @param pagefolder
-     * @throws SwizzleException
-     * @throws ConfluenceException
-     * @throws IOException 
-     * @throws XmlRpcException 
-     */
-    private Page storePage(XWikiXmlRpcClient rpc, String namespace, File pagefolder) throws SwizzleException, ConfluenceException, IOException, XmlRpcException {
-    	
-    	File textfile = new File(pagefolder, cfg.fileXwikiText());
-        File titlefile = new File(pagefolder, cfg.fileTitle());
-        StringBuilder text = loadTextFile(textfile);
-        StringBuilder title = loadTextFile(titlefile);
-        
-    	final Date timestamp = getTimestampFromPage(pagefolder);
+     * @param simpage
+     * @throws Exception
+     */
+    private Page storePage(SimPage simpage) throws Exception {
+    	final Page page = createPage(simpage);
+    	final String pageId = page.getId();
+    	final String fingerprint = fingerprint(page);
+    	if (!isUploaded(UploadJournal.PAGE, pageId, null, fingerprint)) {
+    		logger.fine("storing page " + pageId);
+    		// Store the page object into XWiki
+    		sendPage(page);
+    		journal.record(UploadJournal.PAGE, pageId, null, fingerprint);
+    	}
+    	return page;
+    }
+
+    private Page createPage(SimPage simpage) {
+    	final String namespace = simpage.getNamespace();
+    	final String title = simpage.getTitle();
+    	final Date timestamp = simpage.getRevision();
         
         Page page = new Page();
-        String pageId = namespace+"."+XWikiSerializer2.clearName(title.toString(), true, true);
-        
-        logger.fine("storing page " + pageId);
+        String pageId = pageId(simpage);
         
         page.setId(pageId);
         page.setSpace(namespace);
-        page.setTitle(title.toString());
-        page.setContent(text.toString());
+        page.setTitle(title);
+        page.setContent(simpage.getText());
         page.setCreated(timestamp);
         page.setModified(timestamp);
-        page.setCreator(getUserFromPage(pagefolder));
-        page.setModifier(getUserFromPage(pagefolder));
+        page.setCreator(simpage.getUsername());
+        page.setModifier(simpage.getUsername());
         page.setParentId(namespace+".WebHome");
-        // Store the page object into XWiki
-        rpc.storePage(page);
         return page;
     }
 
     /**
-     * @param rpc
-     * @param pagefolder
+     * @param source
+     * @param simpage
      * @param page
-     * @throws SwizzleException
-     * @throws ConfluenceException
-     * @throws IOException
-     * @throws XmlRpcException
+     * @param links attachments, which are not uploaded
+     * @throws Exception
      */
-    private void storeAttachments(XWikiXmlRpcClient rpc, File pagefolder, Page page) throws SwizzleException, ConfluenceException, IOException, XmlRpcException {
-        File ffile = new File(pagefolder, cfg.fileFiles());
-        if (!ffile.exists()) {
-            return; // nothing to do ;-)
-        }
-        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(ffile), "UTF-8"));
-        for (String filename = br.readLine(); filename != null; filename = br.readLine()) {
+    private void storeAttachments(IPageSource source, SimPage simpage, Page page, Map<String, String> links) throws Exception {
+        for (String filename : simpage.getFiles()) {
+        	if (links.containsKey(filename)) {
+        		continue;
+        	}
+            File fa = source.getAttachment(simpage, filename);
+            final String fingerprint = fingerprint(fa);
+            if (isUploaded(UploadJournal.ATTACHMENT, page.getId(), filename, fingerprint)) {
+            	attachments.uploaded(page.getId(), filename);
+            	continue;
+            }
         	logger.fine("storring attachment " + filename +" for page " + page.getId());
-            File fa = new File(pagefolder, filename);
             if (!fa.canRead() || fa.length() < 1) {
             	continue; // skip not existing files
             }
-            FileInputStream fis = new FileInputStream(fa);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            byte[] buffer = new byte[8192]; 
-            int read = -1;
-            while ((read = fis.read(buffer)) > 0) {
-                baos.write(buffer, 0, read);
-            }
-            fis.close();
-            
             org.codehaus.swizzle.confluence.Attachment a = new org.codehaus.swizzle.confluence.Attachment();
             a.setFileName(filename);
             a.setFileSize(Long.toString(fa.length()));
             a.setPageId(page.getId());
-            rpc.addAttachment(new Integer(filename.hashCode()), a, baos.toByteArray());
-            
+            sendAttachment(a, fa);
+            journal.record(UploadJournal.ATTACHMENT, page.getId(), filename, fingerprint);
+            // now other pages of later runs may link to it
+            attachments.uploaded(page.getId(), filename);
         }
     }
     
     /**
-     * @param rpc
-     * @param pagefolder
+     * @param simpage
      * @param page
-     * @throws SwizzleException
-     * @throws ConfluenceException
-     * @throws IOException
-     * @throws XmlRpcException
+     * @throws Exception
      */
-    private void storeOriginalTextAsAttachment(XWikiXmlRpcClient rpc, File pagefolder, Page page) throws SwizzleException, ConfluenceException, IOException, XmlRpcException {
-    	if (!cfg.isAttachOriginal()) {
+    private void storeOriginalTextAsAttachment(SimPage simpage, Page page) throws Exception {
+    	final byte[] data = originalData(simpage);
+    	final String fingerprint = UploadJournal.fingerprint(simpage.getOriginal());
+    	if (data == null || isUploaded(UploadJournal.ORIGINAL, page.getId(), null, fingerprint)) {
     		return; // nothing to do
     	}
     	logger.fine("attaching original text for page " + page.getId());
-    	
-    	File ofile = new File(pagefolder, cfg.fileOriginal());
-    	if (!ofile.canRead() || ofile.length() < 1) return; // nothing to do ;-)
-    	
-    	final StringBuilder original = loadTextFile(ofile);
-    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    	OutputStreamWriter osw = new OutputStreamWriter(baos);
-    	osw.write(original.toString());
-    	osw.close();
-    	
-    	final Date timestamp = getTimestampFromPage(pagefolder);
-    	
+    	sendAttachment(createOriginalAttachment(simpage, page, data), data);
+    	journal.record(UploadJournal.ORIGINAL, page.getId(), null, fingerprint);
+    }
+
+    /**
+     * @param simpage
+     * @return the original text in UTF-8, null if it isn't attached
+     * @throws IOException
+     */
+    private byte[] originalData(SimPage simpage) throws IOException {
+    	final String original = simpage.getOriginal();
+    	if (!cfg.isAttachOriginal() || original == null || original.length() < 1) {
+    		return null; // nothing to do ;-)
+    	}
+    	return original.getBytes("UTF-8");
+    }
+
+    private Attachment createOriginalAttachment(SimPage simpage, Page page, byte[] data) {
     	Attachment a = new Attachment();
     	String filename = "mediawiki_original.txt";
 		a.setFileName(filename);
-    	a.setFileSize(Long.toString(ofile.length()));
+    	a.setFileSize(Integer.toString(data.length));
     	a.setPageId(page.getId());
-    	a.setCreated(timestamp);
-    	a.setCreator(getUserFromPage(pagefolder));
-    	rpc.addAttachment(new Integer(filename.hashCode()), a, baos.toByteArray());
+    	a.setCreated(simpage.getRevision());
+    	a.setCreator(simpage.getUsername());
+    	return a;
     }
 
-	/**
-	 * @param folder
-	 * @return
-	 * @throws FileNotFoundException
-	 * @throws UnsupportedEncodingException
-	 * @throws IOException
-	 */
-	private Date getTimestampFromPage(File folder) throws FileNotFoundException, UnsupportedEncodingException, IOException {
-		File tfile = new File(folder, cfg.fileTimestamp());
-    	if (!tfile.canRead()) throw new IllegalStateException("Error, can't read from: " + tfile);
-		final StringBuilder timestr = loadTextFile(tfile);
-    	return new Date(Long.parseLong(timestr.toString().trim()));
-	}
-	
-	/**
-	 * @param folder
-	 * @return
-	 * @throws FileNotFoundException
-	 * @throws UnsupportedEncodingException
-	 * @throws IOException
-	 */
-	private String getUserFromPage(File folder) throws FileNotFoundException, UnsupportedEncodingException, IOException {
-		File ufile = new File(folder, cfg.fileUser());
-    	if (!ufile.canRead()) throw new IllegalStateException("Error, can't read from: " + ufile);
-		final StringBuilder userstr = loadTextFile(ufile);
-    	return userstr.toString().trim();
-	}
-
-    
     /**
-     * @param rpc
-     * @param pagefolder
+     * Remembers the tags of the stored page. Once {@link #TAG_BATCH} pages
+     * of a name space are waiting, their tags are placed right away, thus
+     * the pages waiting don't grow with the wiki.
+     *
+     * @param pending
      * @param page
-     * @throws SwizzleException
-     * @throws ConfluenceException
-     * @throws IOException
-     * @throws XmlRpcException
+     * @return true, if tags are pending, the page is done after them
+     * @throws Exception
      */
-    private void storeTags(XWikiXmlRpcClient rpc, File pagefolder, Page page) throws SwizzleException, ConfluenceException, IOException, XmlRpcException {
-        File ctgfile = new File(pagefolder, cfg.fileCategories());
-        if (!ctgfile.exists()) {
-            return; // nothing to do ;-)
-        }
-        
-        // read the categories from file ...
-        List<String> newtags = new ArrayList<String>();
-        InputStreamReader isr = new InputStreamReader(new FileInputStream(ctgfile), "UTF-8");
-		BufferedReader br = new BufferedReader(isr);
-        for (String tagname = br.readLine(); tagname != null; tagname = br.readLine()) {
-        	newtags.add(tagname);
-        }
-        br.close();
-        
-        if (logger.isLoggable(Level.FINE)) {
-        	logger.fine("placing tags " + Arrays.toString(newtags.toArray())+ " for page " + page.getId());
-        }
-        
-    	// retrieve current page object informations
-    	XWikiObjectSummary xosum = new XWikiObjectSummary();
-    	xosum.setPageId(page.getId());
-    	xosum.setClassName("XWiki.TagClass");
-		try {
-			// append tags
-			XWikiObject xwo = rpc.getObject(xosum);
-			List<String> curtags = (List<String>) xwo.getProperty("tags");
-			for (String newtag : newtags) {
-				// avoid duplicates
-				if (!curtags.contains(newtag)) curtags.add(newtag);
-			}
-	    	rpc.storeObject(xwo);
-		} catch (XmlRpcException  e) {
-			// most likely bug:
-			// http://jira.xwiki.org/jira/browse/XWIKI-5396
-			// Thus create new tags
-			XWikiObject xwo = new XWikiObject();
-			xwo.setClassName("XWiki.TagClass");
-			xwo.setPageId(page.getId());
-			xwo.setProperty("tags", newtags);
-			rpc.storeObject(xwo);
-		}
-		
+    private boolean collectTags(PendingPage pending, Page page) throws Exception {
+    	final SimPage simpage = pending.page;
+    	final String fingerprint = UploadJournal.fingerprint(simpage.getCategories());
+    	if (simpage.sizeCategory() < 1 || isUploaded(UploadJournal.TAGS, page.getId(), null, fingerprint)) {
+    		return false; // nothing to do ;-)
+    	}
+    	Map<String, PendingTags> space = tags.get(simpage.getNamespace());
+    	if (space == null) {
+    		synchronized (tags) {
+    			space = tags.get(simpage.getNamespace());
+    			if (space == null) {
+    				space = new HashMap<String, PendingTags>();
+    				tags.put(simpage.getNamespace(), space);
+    			}
+    		}
+    	}
+    	Map<String, PendingTags> full = null;
+    	synchronized (space) {
+    		space.put(page.getId(), new PendingTags(simpage.getCategories(), fingerprint, pending.fingerprint));
+    		if (space.size() >= TAG_BATCH) {
+    			full = new HashMap<String, PendingTags>(space);
+    			space.clear();
+    		}
+    	}
+    	if (full != null) {
+    		logger.fine("placing tags of " + full.size() + " pages in name space " + simpage.getNamespace());
+    		reconcileTags(sorted(full.keySet()), full);
+    	}
+    	return true;
     }
 
     /**
-     * @param file
-     * @return
-     * @throws FileNotFoundException
-     * @throws UnsupportedEncodingException
-     * @throws IOException
+     * Adds the tags still waiting, name space by name space, even if
+     * other pages failed. The existing tags of the pages are read in one
+     * request of the transport, merged with the new tags and only changed
+     * pages are stored, again in one request.
      */
-    private StringBuilder loadTextFile(File file) throws FileNotFoundException, UnsupportedEncodingException, IOException {
-        FileInputStream fis = new FileInputStream(file);
-        InputStreamReader isr = new InputStreamReader(fis, "UTF-8");
-        StringBuilder text = new StringBuilder((int)file.length());
-        char[] buf = new char[4096];
-        int read = -1;
-        while ((read = isr.read(buf)) > 0) {
-            text.append(buf, 0, read);
-        }
-        isr.close();
-        return text;
+    private void reconcileTags() {
+    	for (Map.Entry<String, Map<String, PendingTags>> space : tags.entrySet()) {
+    		final Map<String, PendingTags> pending;
+    		synchronized (space.getValue()) {
+    			pending = new HashMap<String, PendingTags>(space.getValue());
+    			space.getValue().clear();
+    		}
+    		if (pending.isEmpty()) {
+    			continue;
+    		}
+    		logger.info("Placing tags of " + pending.size() + " pages in name space " + space.getKey() + " ...");
+    		try {
+    			governor.acquire();
+    			try {
+    				reconcileTags(sorted(pending.keySet()), pending);
+    			} finally {
+    				governor.release();
+    			}
+    		} catch (Exception e) {
+    			// the pages are not done, the next run places their tags again
+    			failure.compareAndSet(null, e);
+    			return;
+    		}
+    	}
+    }
+
+    private static List<String> sorted(Set<String> pageIds) {
+    	final List<String> result = new ArrayList<String>(pageIds);
+    	Collections.sort(result);
+    	return result;
+    }
+
+    /**
+     * Places the tags of the pages. The pages, whose tags failed, are
+     * read again before the retry: a failed store may have been applied
+     * and would add a second tag object.
+     *
+     * @param pageIds
+     * @param pending
+     * @throws Exception
+     */
+    private void reconcileTags(List<String> pageIds, Map<String, PendingTags> pending) throws Exception {
+    	for (int attempt = 0; ; attempt++) {
+    		final Map<String, Exception> faults = placeTags(pageIds, pending);
+    		if (faults.isEmpty()) {
+    			return;
+    		}
+    		final Exception e = faults.values().iterator().next();
+    		if (attempt >= retries) {
+    			// the pages are not done, the next run places their tags again
+    			failure.compareAndSet(null, e);
+    			return;
+    		}
+    		logger.warning("placing tags of " + faults.size() + " pages failed, retry " + (attempt + 1) + " of " + retries + ": " + e.getMessage());
+    		backoff(attempt + 1);
+    		pageIds = new ArrayList<String>(faults.keySet());
+    	}
+    }
+
+    /**
+     * @param pageIds
+     * @param pending
+     * @return page id -&gt; fault of the pages, whose tags were not stored
+     * @throws Exception
+     */
+    private Map<String, Exception> placeTags(final List<String> pageIds, Map<String, PendingTags> pending) throws Exception {
+    	final List<Map<String, List<String>>> read = new ArrayList<Map<String, List<String>>>(1);
+    	send(new IRequest() {
+    		@Override
+    		public void send() throws Exception {
+    			read.add(transport.getTags(pageIds));
+    		}
+    	}, "reading tags of " + pageIds.size() + " pages");
+    	final Map<String, List<String>> current = read.get(0);
+    	final Map<String, List<String>> changed = new LinkedHashMap<String, List<String>>();
+    	for (String pageId : pageIds) {
+    		final Set<String> newtags = pending.get(pageId).tags;
+    		final Set<String> merged = new LinkedHashSet<String>();
+    		if (current.get(pageId) != null) {
+    			merged.addAll(current.get(pageId));
+    		}
+    		if (!merged.addAll(newtags)) {
+    			// all tags exist already
+    			recordTags(pageId, pending.get(pageId));
+    			continue;
+    		}
+    		if (logger.isLoggable(Level.FINE)) {
+    			logger.fine("placing tags " + Arrays.toString(newtags.toArray()) + " for page " + pageId);
+    		}
+    		changed.put(pageId, new ArrayList<String>(merged));
+    	}
+    	if (changed.isEmpty()) {
+    		return Collections.emptyMap();
+    	}
+    	final long started = System.nanoTime();
+    	Map<String, Exception> faults;
+    	try {
+    		faults = transport.storeTags(changed);
+    		governor.sample(started, !faults.isEmpty());
+    	} catch (Exception e) {
+    		governor.sample(started, true);
+    		faults = new HashMap<String, Exception>();
+    		for (String pageId : changed.keySet()) {
+    			faults.put(pageId, e);
+    		}
+    	}
+    	for (String pageId : changed.keySet()) {
+    		if (!faults.containsKey(pageId)) {
+    			recordTags(pageId, pending.get(pageId));
+    		}
+    	}
+    	return faults;
+    }
+
+    private void recordTags(String pageId, PendingTags pending) throws IOException {
+    	journal.record(UploadJournal.TAGS, pageId, null, pending.fingerprint);
+    	journal.record(UploadJournal.DONE, pageId, null, pending.done);
+    }
+
+    /**
+     * A request to the wiki, which can be repeated.
+     */
+    private interface IRequest {
+    	void send() throws Exception;
+    }
+
+    /**
+     * Tags of a stored page, waiting for the next group of its name space.
+     */
+    private static class PendingTags {
+    	final Set<String> tags;
+    	final String fingerprint;
+    	/** fingerprint of the whole page */
+    	final String done;
+
+    	PendingTags(String[] tags, String fingerprint, String done) {
+    		this.tags = new LinkedHashSet<String>(Arrays.asList(tags));
+    		this.fingerprint = fingerprint;
+    		this.done = done;
+    	}
+    }
+
+    /**
+     * A page read from the source, waiting for its upload.
+     */
+    private static class PendingPage {
+    	final SimPage page;
+    	final Map<String, String> links;
+    	final String fingerprint;
+
+    	PendingPage(SimPage page, Map<String, String> links, String fingerprint) {
+    		this.page = page;
+    		this.links = links;
+    		this.fingerprint = fingerprint;
+    	}
     }
-}
\ No newline at end of file
+}
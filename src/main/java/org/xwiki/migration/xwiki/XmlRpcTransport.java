@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.codehaus.swizzle.confluence.Attachment;
+import org.codehaus.swizzle.confluence.Comment;
+import org.codehaus.swizzle.confluence.Page;
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.xmlrpc.XWikiXmlRpcClient;
+import org.xwiki.xmlrpc.model.XWikiObject;
+import org.xwiki.xmlrpc.model.XWikiPageSummary;
+
+/**
+ * Uploads through the XWiki XML-RPC API on a {@link SessionPool}.
+ * Batches and tags go through a {@link MulticallClient} per thread,
+ * attachments larger than upload.attachment.stream.size through the REST API.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class XmlRpcTransport implements IUploadTransport {
+
+	/** larger files can't be read into one array */
+	private static final long MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	private static final String TAG_CLASS = "XWiki.TagClass";
+
+	private final Logger logger = Logger.getLogger(this.getClass().getName());
+	private final String url;
+	private final String user;
+	private final String pass;
+	private final long streamsize;
+	private final SessionPool sessions;
+	private final RestAttachmentUploader restuploader;
+	private final ThreadLocal<MulticallClient> multicalls = new ThreadLocal<MulticallClient>();
+	private final List<MulticallClient> multicallclients = Collections.synchronizedList(new ArrayList<MulticallClient>());
+	/** pages, where {@link #getTags(List)} found a tag object */
+	private final Set<String> tagobjects = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Logs in one session per upload thread.
+	 *
+	 * @param cfg
+	 * @throws MalformedURLException
+	 * @throws XmlRpcException
+	 */
+	public XmlRpcTransport(Config cfg) throws MalformedURLException, XmlRpcException {
+		this.url = cfg.getXWikiUrl();
+		this.user = cfg.getXWikiUser();
+		this.pass = cfg.getXWikiPass();
+		this.streamsize = cfg.getUploadStreamSize();
+		this.sessions = new SessionPool(url, user, pass, cfg.getUploadThreads());
+		this.restuploader = new RestAttachmentUploader(cfg.getXWikiRestUrl(), user, pass);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#exists(java.lang.String)
+	 */
+	@Override
+	public boolean exists(String pageId) throws Exception {
+		final XWikiXmlRpcClient rpc = sessions.borrow();
+		try {
+			rpc.getPage(pageId);
+			return true;
+		} catch (XmlRpcException e) {
+			if (isNotFound(e)) {
+				return false;
+			}
+			throw e;
+		} finally {
+			sessions.release(rpc);
+		}
+	}
+
+	/**
+	 * Transport and client errors are subclasses of XmlRpcException,
+	 * a fault sent by XWiki is not. It says "Page 'Space.Page' does not exist",
+	 * likewise for a space.
+	 *
+	 * @param e
+	 * @return true, if the server says, that the page or space doesn't exist
+	 */
+	private static boolean isNotFound(XmlRpcException e) {
+		return e.getClass() == XmlRpcException.class && e.getMessage() != null
+				&& e.getMessage().toLowerCase(Locale.ENGLISH).contains("does not exist");
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#listPages(java.lang.String)
+	 */
+	@Override
+	public Set<String> listPages(String space) throws Exception {
+		final Set<String> result = new HashSet<String>();
+		final XWikiXmlRpcClient rpc = sessions.borrow();
+		try {
+			for (XWikiPageSummary summary : rpc.getPages(space)) {
+				result.add(summary.getId());
+			}
+		} catch (XmlRpcException e) {
+			if (!isNotFound(e)) {
+				throw e;
+			}
+			logger.fine("no pages in space " + space + ": " + e.getMessage());
+		} finally {
+			sessions.release(rpc);
+		}
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storePage(org.codehaus.swizzle.confluence.Page)
+	 */
+	@Override
+	public void storePage(Page page) throws Exception {
+		final XWikiXmlRpcClient rpc = sessions.borrow();
+		try {
+			rpc.storePage(page);
+		} finally {
+			sessions.release(rpc);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storeAttachment(org.codehaus.swizzle.confluence.Attachment, byte[])
+	 */
+	@Override
+	public void storeAttachment(Attachment attachment, byte[] data) throws Exception {
+		final XWikiXmlRpcClient rpc = sessions.borrow();
+		try {
+			rpc.addAttachment(new Integer(attachment.getFileName().hashCode()), attachment, data);
+		} finally {
+			sessions.release(rpc);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#storeAttachment(org.codehaus.swizzle.confluence.Attachment, java.io.File)
+	 */
+	@Override
+	public void storeAttachment(Attachment attachment, File file) throws Exception {
+		if ((streamsize > 0 && file.length() > streamsize) || file.length() > MAX_ARRAY_SIZE) {
+			logger.fine("streaming attachment " + attachment.getFileName() + " (" + file.length() + " bytes)");
+			final String[] id = RestAttachmentUploader.splitPageId(attachment.getPageId());
+			restuploader.upload(id[0], id[1], attachment.getFileName(), file);
+		} else {
+			storeAttachment(attachment, readFile(file));
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return the content in an array of exactly the file size
+	 * @throws IOException
+	 */
+	private static byte[] readFile(File file) throws IOException {
+		final byte[] data = new byte[(int) file.length()];
+		final DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#addComment(org.codehaus.swizzle.confluence.Comment)
+	 */
+	@Override
+	public void addComment(Comment comment) throws Exception {
+		final XWikiXmlRpcClient rpc = sessions.borrow();
+		try {
+			rpc.addComment(comment);
+		} finally {
+			sessions.release(rpc);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.xwiki.migration.xwiki.IUploadTransport#hasComment(org.codehaus.swizzle.confluence.Comment)
+	 */
+	@Override
+	public boolean hasComment(Comment comment) throws Exception {
+		final XWikiXmlRpcClient rpc = sessions.borrow();
+		try {
+			for (Comment existing : rpc.getComments(comment.getPageId())) {
+				if (comment.getContent().equals(existing.getContent())) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			sessions.release(rpc);
+		}
+	}
+
+	/**
+	 * All calls go into one system.multicall request.
+	 */
+	@Override
+	public void execute(List<UploadCall> calls) throws Exception {
+		final List<MulticallClient.Call> multicall = new ArrayList<MulticallClient.Call>(calls.size());
+		for (UploadCall call : calls) {
+			if (UploadCall.STORE_PAGE.equals(call.getMethod())) {
+				multicall.add(new MulticallClient.Call("storePage", ((Page) call.getArgument()).toMap()));
+			} else if (UploadCall.ADD_ATTACHMENT.equals(call.getMethod())) {
+				final Attachment a = (Attachment) call.getArgument();
+				multicall.add(new MulticallClient.Call("addAttachment", new Integer(a.getFileName().hashCode()), a.toMap(), call.getData()));
+			} else {
+				multicall.add(new MulticallClient.Call("addComment", ((Comment) call.getArgument()).toMap()));
+			}
+		}
+		getMulticall().execute(multicall);
+		for (int i = 0; i < calls.size(); i++) {
+			try {
+				multicall.get(i).getResult();
+			} catch (XmlRpcException e) {
+				calls.get(i).setFault(e);
+			}
+		}
+	}
+
+	/**
+	 * Reads the first tag object of all pages in one system.multicall request.
+	 */
+	@Override
+	public Map<String, List<String>> getTags(List<String> pageIds) throws Exception {
+		final List<MulticallClient.Call> reads = new ArrayList<MulticallClient.Call>(pageIds.size());
+		for (String pageId : pageIds) {
+			reads.add(new MulticallClient.Call("getObject", pageId, TAG_CLASS, Integer.valueOf(0)));
+		}
+		getMulticall().execute(reads);
+		final Map<String, List<String>> result = new HashMap<String, List<String>>();
+		for (int i = 0; i < pageIds.size(); i++) {
+			try {
+				final XWikiObject xwo = new XWikiObject((Map<?, ?>) reads.get(i).getResult());
+				result.put(pageIds.get(i), toTags(xwo.getProperty("tags")));
+				tagobjects.add(pageIds.get(i));
+			} catch (XmlRpcException e) {
+				// no tags yet or most likely bug:
+				// http://jira.xwiki.org/jira/browse/XWIKI-5396
+				// Thus create new tags
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Stores all tag objects in one system.multicall request. The tag object
+	 * found by {@link #getTags(List)} is replaced, otherwise a new one is created.
+	 */
+	@Override
+	public Map<String, Exception> storeTags(Map<String, List<String>> tags) throws Exception {
+		final List<MulticallClient.Call> writes = new ArrayList<MulticallClient.Call>(tags.size());
+		final List<String> pageIds = new ArrayList<String>(tags.keySet());
+		for (String pageId : pageIds) {
+			final XWikiObject xwo = new XWikiObject();
+			xwo.setClassName(TAG_CLASS);
+			xwo.setPageId(pageId);
+			if (tagobjects.contains(pageId)) {
+				xwo.setId(0);
+			}
+			xwo.setProperty("tags", tags.get(pageId));
+			writes.add(new MulticallClient.Call("storeObject", xwo.toRawMap()));
+		}
+		getMulticall().execute(writes);
+		final Map<String, Exception> faults = new HashMap<String, Exception>();
+		for (int i = 0; i < writes.size(); i++) {
+			try {
+				writes.get(i).getResult();
+				tagobjects.remove(pageIds.get(i));
+			} catch (XmlRpcException e) {
+				faults.put(pageIds.get(i), new XmlRpcException("failed to place tags for page " + pageIds.get(i) + ": " + e.getMessage(), e));
+			}
+		}
+		return faults;
+	}
+
+	/**
+	 * @param value property value of a tag object
+	 * @return the tags
+	 */
+	private static List<String> toTags(Object value) {
+		final List<String> result = new ArrayList<String>();
+		if (value instanceof Collection) {
+			for (Object tag : (Collection<?>) value) {
+				result.add(String.valueOf(tag));
+			}
+		} else if (value != null && String.valueOf(value).length() > 0) {
+			for (String tag : String.valueOf(value).split("\\|")) {
+				result.add(tag);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the multicall client of the current upload thread
+	 * @throws Exception
+	 */
+	private MulticallClient getMulticall() throws Exception {
+		MulticallClient multicall = multicalls.get();
+		if (multicall == null) {
+			multicall = new MulticallClient(url);
+			multicall.login(user, pass);
+			multicallclients.add(multicall);
+			multicalls.set(multicall);
+		}
+		return multicall;
+	}
+
+	/**
+	 * Logs out all sessions.
+	 */
+	@Override
+	public void close() throws IOException {
+		sessions.close();
+		for (MulticallClient multicall : multicallclients) {
+			try {
+				multicall.logout();
+			} catch (XmlRpcException e) {
+				logger.warning("logout failed: " + e.getMessage());
+			}
+		}
+		multicallclients.clear();
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xwiki.migration.mediawiki.output.IPageWriter;
+import org.xwiki.migration.mediawiki.xmldump.model.SimPage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs the {@link AttachmentFetcher} against a local HTTP server,
+ * which knows one file and answers Range, If-Range and If-Modified-Since requests.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class AttachmentFetcherTest {
+
+	private static final String NAME = "Image.png";
+	/** on the server, full seconds like the HTTP date */
+	private static final long MODIFIED = 1500000000000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final byte[] content = new byte[100000];
+	/** status codes sent by the server */
+	private final List<Integer> responses = new CopyOnWriteArrayList<Integer>();
+	private HttpServer server;
+	private File target;
+
+	@Before
+	public void setUp() throws IOException {
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/files/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				serve(exchange);
+			}
+		});
+		server.start();
+		target = new File(folder.getRoot(), NAME);
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		final DateTimeFormatter format = DateTimeFormatter.RFC_1123_DATE_TIME;
+		final String range = exchange.getRequestHeaders().getFirst("Range");
+		final String since = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+		final String ifrange = exchange.getRequestHeaders().getFirst("If-Range");
+		final String modified = format.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(MODIFIED), ZoneOffset.UTC));
+		exchange.getResponseHeaders().add("Last-Modified", modified);
+		int status = 200;
+		int from = 0;
+		if (!exchange.getRequestURI().getPath().equals("/files/" + NAME)) {
+			status = 404;
+		} else if (range != null && (ifrange == null || ifrange.equals(modified))) {
+			from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+			if (from >= content.length) {
+				status = 416;
+				exchange.getResponseHeaders().add("Content-Range", "bytes */" + content.length);
+			} else {
+				status = 206;
+				exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + (content.length - 1) + "/" + content.length);
+			}
+		} else if (since != null && ZonedDateTime.parse(since, format).toInstant().toEpochMilli() >= MODIFIED) {
+			status = 304;
+		}
+		responses.add(Integer.valueOf(status));
+		if (status == 200 || status == 206) {
+			exchange.sendResponseHeaders(status, content.length - from);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(content, from, content.length - from);
+			out.close();
+		} else {
+			exchange.sendResponseHeaders(status, -1);
+		}
+		exchange.close();
+	}
+
+	private void fetch(String filename) throws InterruptedException {
+		final SimPage page = new SimPage();
+		page.setTitle("Page");
+		page.addFile(filename);
+		new AttachmentFetcher("http://localhost:" + server.getAddress().getPort() + "/files/{0}", 1).fetch(page, new IPageWriter() {
+			@Override
+			public void writePage(SimPage page) throws IOException {
+				// not needed
+			}
+
+			@Override
+			public File getAttachment(SimPage page, String filename) {
+				return new File(folder.getRoot(), filename);
+			}
+
+			@Override
+			public void close() throws IOException {
+				// not needed
+			}
+		});
+	}
+
+	private File part() {
+		return new File(target.getPath() + ".part");
+	}
+
+	@Test
+	public void testDownload() throws Exception {
+		fetch(NAME);
+		assertEquals(Arrays.asList(200), responses);
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		assertEquals(MODIFIED, target.lastModified());
+		assertFalse(part().exists());
+	}
+
+	@Test
+	public void testNotModified() throws Exception {
+		Files.write(target.toPath(), "local".getBytes("UTF-8"));
+		target.setLastModified(MODIFIED);
+		fetch(NAME);
+		assertEquals(Arrays.asList(304), responses);
+		assertEquals("local", new String(Files.readAllBytes(target.toPath()), "UTF-8"));
+	}
+
+	/**
+	 * @param data
+	 * @param modified time of the file on the server, when the part was written
+	 * @throws IOException
+	 */
+	private void writePart(byte[] data, long modified) throws IOException {
+		Files.write(part().toPath(), data);
+		part().setLastModified(modified);
+	}
+
+	@Test
+	public void testResume() throws Exception {
+		writePart(Arrays.copyOf(content, 40000), MODIFIED);
+		fetch(NAME);
+		assertEquals(Arrays.asList(206), responses);
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		assertFalse(part().exists());
+	}
+
+	@Test
+	public void testChangedSinceInterrupt() throws Exception {
+		// the part of an older file, it must not be continued
+		writePart(new byte[40000], MODIFIED - 3600000);
+		fetch(NAME);
+		assertEquals(Arrays.asList(200), responses);
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		assertFalse(part().exists());
+	}
+
+	@Test
+	public void testCompletePart() throws Exception {
+		writePart(content, MODIFIED);
+		fetch(NAME);
+		assertEquals(Arrays.asList(416), responses);
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		assertFalse(part().exists());
+	}
+
+	@Test
+	public void testOversizedPart() throws Exception {
+		writePart(new byte[content.length + 10], MODIFIED);
+		fetch(NAME);
+		assertEquals(Arrays.asList(416, 200), responses);
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+	}
+
+	@Test
+	public void testNotFound() throws Exception {
+		fetch("Missing.png");
+		assertEquals(Arrays.asList(404), responses);
+		assertFalse(new File(folder.getRoot(), "Missing.png").exists());
+	}
+}
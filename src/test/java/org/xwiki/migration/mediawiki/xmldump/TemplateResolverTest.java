@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.mediawiki.xmldump;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.xwiki.migration.mediawiki.xmldump.model.SimNamespace;
+import org.xwiki.migration.mediawiki.xmldump.model.SimTemplateDefinition;
+
+/**
+ * @author mkirst(at portolancs dot com)
+ */
+public class TemplateResolverTest {
+
+	private static TemplateResolver resolver(String... definitions) {
+		final SimNamespace templates = new SimNamespace();
+		for (int i = 0; i < definitions.length; i += 2) {
+			final SimTemplateDefinition td = new SimTemplateDefinition();
+			td.setTitle("Template:" + definitions[i]);
+			td.setText(definitions[i + 1]);
+			templates.add(td);
+		}
+		return new TemplateResolver(Collections.singletonList(templates));
+	}
+
+	@Test
+	public void testParameters() {
+		final TemplateResolver resolver = resolver("B", "[{{{1}}}|{{{name|none}}}]");
+		assertEquals("a [x|none] b", resolver.resolve("a {{B|x}} b"));
+		// the same template in a parameter is no loop
+		assertEquals("[[y|none]|z]", resolver.resolve("{{b|{{B|y}}|name=z}}"));
+	}
+
+	@Test(timeout = 10000)
+	public void testLoopIsKept() {
+		final TemplateResolver resolver = resolver("A", "x{{#switch:q|{{A}}|{{A}}|{{A}}}}");
+		assertEquals("x{{#switch:q|{{A}}|{{A}}|{{A}}}}", resolver.resolve("{{A}}"));
+	}
+
+	@Test(timeout = 10000)
+	public void testIndirectLoopIsKept() {
+		final TemplateResolver resolver = resolver("A", "a{{B}}", "B", "b{{A}}");
+		assertEquals("ab{{A}}", resolver.resolve("{{A}}"));
+	}
+
+	@Test(timeout = 10000)
+	public void testUnclosedBraces() {
+		final TemplateResolver resolver = resolver("B", "[{{{1}}}]");
+		final StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			text.append(i % 2 == 0 ? "{{ a " : "{{{ b | ");
+		}
+		final String unclosed = text.toString();
+		assertEquals(unclosed + "[x]", resolver.resolve(unclosed + "{{B|x}}"));
+		assertEquals(unclosed, resolver.resolve(unclosed));
+	}
+
+	@Test(timeout = 30000)
+	public void testPageBudget() {
+		// after a loop nothing is cached, thus each level multiplies the work by ten
+		final String ten = "{{N}}{{N}}{{N}}{{N}}{{N}}{{N}}{{N}}{{N}}{{N}}{{N}}";
+		final TemplateResolver resolver = resolver("L", "{{L}}",
+				"T1", ten.replace("N", "T2"), "T2", ten.replace("N", "T3"), "T3", ten.replace("N", "T4"),
+				"T4", ten.replace("N", "T5"), "T5", ten.replace("N", "T6"), "T6", ten.replace("N", "T7"),
+				"T7", ten.replace("N", "T8"), "T8", "0123456789012345678901234567890123456789");
+		final String result = resolver.resolve("{{L}}{{T1}}");
+		assertTrue(result.length() < TemplateResolver.MAX_PAGE_SIZE * 2);
+		assertTrue(result.contains("{{T"));
+	}
+}
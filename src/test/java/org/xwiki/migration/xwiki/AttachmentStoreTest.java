@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the owners of the {@link AttachmentStore} across runs.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class AttachmentStoreTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private File image;
+
+	@Before
+	public void setUp() throws IOException {
+		file = new File(folder.getRoot(), "_attachment_store.txt");
+		image = folder.newFile("image.png");
+		Files.write(image.toPath(), "image".getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testSameRun() throws Exception {
+		final AttachmentStore store = new AttachmentStore(file);
+		try {
+			assertNull(store.claim(image, "Main.First", "image.png"));
+			assertNull(store.claim(image, "Main.First", "image.png"));
+			assertEquals("Main.First@image.png", store.claim(image, "Main.Second", "image.png"));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testUploadedOwner() throws Exception {
+		AttachmentStore store = new AttachmentStore(file);
+		store.claim(image, "Main.First", "image.png");
+		store.uploaded("Main.First", "image.png");
+		store.close();
+		store = new AttachmentStore(file);
+		try {
+			assertEquals("Main.First@image.png", store.claim(image, "Main.Second", "image.png"));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testFailedOwner() throws Exception {
+		AttachmentStore store = new AttachmentStore(file);
+		store.claim(image, "Main.First", "image.png");
+		// the upload stops before the owner has uploaded the image
+		store.close();
+		store = new AttachmentStore(file);
+		try {
+			assertNull(store.claim(image, "Main.Second", "image.png"));
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,660 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.apache.xmlrpc.XmlRpcException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An XWiki XML-RPC end point on the JDK HTTP server, to measure the
+ * uploader without a real XWiki. It knows the calls of the uploader:
+ * login, logout, getPage, getPages, storePage, addAttachment, addComment,
+ * getComments, getObject, storeObject and system.multicall.
+ * Pages, comments and objects are kept in memory, attachments are only counted.
+ *
+ * Each request waits {@link #setRequestLatency(long)} ms, each call within
+ * a request {@link #setCallLatency(long)} ms. Calls, which change the wiki,
+ * fail at random with {@link #setFailureRate(double)}. With
+ * {@link #setFailAfterApply(boolean)} they fail after they were applied,
+ * like a response lost on its way back.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class MockXWikiServer implements Closeable {
+
+	private static final String PATH = "/xwiki/xmlrpc/confluence";
+	private static final String HANDLER = "confluence1.";
+	private static final String DATE_FORMAT = "yyyyMMdd'T'HH:mm:ss";
+	private static final Set<String> WRITES = new HashSet<String>(Arrays.asList(
+			"storePage", "addAttachment", "addComment", "storeObject"));
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	private final XMLInputFactory inputfactory = XMLInputFactory.newInstance();
+	private final XMLOutputFactory outputfactory = XMLOutputFactory.newInstance();
+	private final Map<String, Map<String, Object>> pages = new ConcurrentHashMap<String, Map<String, Object>>();
+	/** page id -&gt; comments */
+	private final Map<String, List<Map<String, Object>>> comments = new ConcurrentHashMap<String, List<Map<String, Object>>>();
+	/** page id#class name#number -&gt; object */
+	private final Map<String, Map<String, Object>> objects = new ConcurrentHashMap<String, Map<String, Object>>();
+	private final Map<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong faults = new AtomicLong();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger maxconcurrency = new AtomicInteger();
+	/** duration of each request in ns */
+	private final List<Long> durations = Collections.synchronizedList(new ArrayList<Long>());
+	private final Random random = new Random(0);
+	private volatile long requestlatency = 0;
+	private volatile long calllatency = 0;
+	private volatile double failurerate = 0;
+	private volatile boolean failafterapply = false;
+	private volatile String failingtitle = null;
+	private volatile boolean multicall = true;
+
+	/**
+	 * @param port 0 for any free port
+	 * @throws IOException
+	 */
+	public MockXWikiServer(int port) throws IOException {
+		// without, Nagle and delayed ACKs add about 40 ms to each request;
+		// read once, when the first server is created
+		System.setProperty("sun.net.httpserver.nodelay", "true");
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext(PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				MockXWikiServer.this.handle(exchange);
+			}
+		});
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * @return the XML-RPC end point, like xwiki.url
+	 */
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + PATH;
+	}
+
+	/**
+	 * @param millis wait time of each HTTP request
+	 */
+	public void setRequestLatency(long millis) {
+		this.requestlatency = millis;
+	}
+
+	/**
+	 * @param millis wait time of each call, a multicall request waits for each call in it
+	 */
+	public void setCallLatency(long millis) {
+		this.calllatency = millis;
+	}
+
+	/**
+	 * @param rate 0 .. 1, share of failing storePage, addAttachment, addComment and storeObject calls
+	 */
+	public void setFailureRate(double rate) {
+		this.failurerate = rate;
+	}
+
+	/**
+	 * @param supported false to answer system.multicall with fault -32601 (method not found)
+	 */
+	public void setMulticall(boolean supported) {
+		this.multicall = supported;
+	}
+
+	/**
+	 * @param title storePage of the page with this title always fails, null for none
+	 */
+	public void setFailingTitle(String title) {
+		this.failingtitle = title;
+	}
+
+	/**
+	 * @param after true to fail the calls after they were applied, a failing
+	 * call within a multicall fails the whole request then
+	 */
+	public void setFailAfterApply(boolean after) {
+		this.failafterapply = after;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return size of all request bodies
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return number of injected failures
+	 */
+	public long getFaults() {
+		return faults.get();
+	}
+
+	public int getMaxConcurrency() {
+		return maxconcurrency.get();
+	}
+
+	/**
+	 * @param method name without handler, sample: storePage
+	 * @return number of calls, alone or within a multicall
+	 */
+	public long getCalls(String method) {
+		final AtomicLong count = calls.get(method);
+		return count != null ? count.get() : 0;
+	}
+
+	/**
+	 * @return number of comments on all pages
+	 */
+	public int getComments() {
+		int count = 0;
+		for (List<Map<String, Object>> page : comments.values()) {
+			count += page.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return number of objects on all pages
+	 */
+	public int getObjects() {
+		return objects.size();
+	}
+
+	/**
+	 * @return number of stored pages
+	 */
+	public int getPages() {
+		return pages.size();
+	}
+
+	/**
+	 * @param percentile 0 .. 100
+	 * @return the request duration in ms, which is not exceeded by this share of requests
+	 */
+	public long getLatency(double percentile) {
+		final Long[] sorted;
+		synchronized (durations) {
+			sorted = durations.toArray(new Long[durations.size()]);
+		}
+		if (sorted.length < 1) {
+			return 0;
+		}
+		Arrays.sort(sorted);
+		final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))].longValue() / 1000000;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		final long started = System.nanoTime();
+		final int now = active.incrementAndGet();
+		for (int max = maxconcurrency.get(); now > max && !maxconcurrency.compareAndSet(max, now); max = maxconcurrency.get()) {
+			// retry
+		}
+		try {
+			final byte[] body = readFully(exchange.getRequestBody());
+			requests.incrementAndGet();
+			bytes.addAndGet(body.length);
+			sleep(requestlatency);
+			final List<Object> params = new ArrayList<Object>();
+			final String method = parseCall(body, params);
+			byte[] response;
+			try {
+				response = writeResponse(dispatch(method, params.toArray()), null);
+			} catch (XmlRpcException e) {
+				response = writeResponse(null, e);
+			}
+			exchange.getResponseHeaders().add("Content-Type", "text/xml");
+			exchange.sendResponseHeaders(200, response.length);
+			final OutputStream out = exchange.getResponseBody();
+			out.write(response);
+			out.close();
+		} catch (XMLStreamException e) {
+			exchange.sendResponseHeaders(400, -1);
+		} catch (LostResponse e) {
+			exchange.sendResponseHeaders(500, -1);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exchange.sendResponseHeaders(503, -1);
+		} finally {
+			active.decrementAndGet();
+			durations.add(Long.valueOf(System.nanoTime() - started));
+			exchange.close();
+		}
+	}
+
+	private Object dispatch(String method, Object[] params) throws XmlRpcException, InterruptedException, LostResponse {
+		if (!"system.multicall".equals(method)) {
+			return call(method, params);
+		}
+		if (!multicall) {
+			throw new XmlRpcException(-32601, "server error. requested method system.multicall not found");
+		}
+		final Object[] requests = (Object[]) params[0];
+		final Object[] results = new Object[requests.length];
+		boolean lost = false;
+		for (int i = 0; i < requests.length; i++) {
+			final Map<?, ?> request = (Map<?, ?>) requests[i];
+			try {
+				results[i] = new Object[] { call((String) request.get("methodName"), (Object[]) request.get("params")) };
+			} catch (InjectedFault e) {
+				lost |= failafterapply;
+				final Map<String, Object> fault = new HashMap<String, Object>();
+				fault.put("faultCode", Integer.valueOf(e.code));
+				fault.put("faultString", e.getMessage());
+				results[i] = fault;
+			} catch (XmlRpcException e) {
+				final Map<String, Object> fault = new HashMap<String, Object>();
+				fault.put("faultCode", Integer.valueOf(e.code));
+				fault.put("faultString", e.getMessage());
+				results[i] = fault;
+			}
+		}
+		if (lost) {
+			throw new LostResponse();
+		}
+		return results;
+	}
+
+	/**
+	 * @param method
+	 * @param params token first, except for login
+	 * @return the result
+	 * @throws XmlRpcException the fault
+	 * @throws InterruptedException
+	 */
+	private Object call(String method, Object[] params) throws XmlRpcException, InterruptedException {
+		if (method == null || !method.startsWith(HANDLER)) {
+			throw new XmlRpcException(0, "No such handler: " + method);
+		}
+		final String name = method.substring(HANDLER.length());
+		count(name);
+		sleep(calllatency);
+		if ("storePage".equals(name) && failingtitle != null && failingtitle.equals(((Map<?, ?>) params[1]).get("title"))) {
+			faults.incrementAndGet();
+			throw new InjectedFault(name);
+		}
+		final boolean fail = WRITES.contains(name) && failurerate > 0 && random.nextDouble() < failurerate;
+		if (fail && !failafterapply) {
+			faults.incrementAndGet();
+			throw new InjectedFault(name);
+		}
+		final Object result = apply(name, params);
+		if (fail) {
+			faults.incrementAndGet();
+			throw new InjectedFault(name);
+		}
+		return result;
+	}
+
+	/**
+	 * @param name method without handler
+	 * @param params
+	 * @return the result
+	 * @throws XmlRpcException the fault
+	 */
+	private Object apply(String name, Object[] params) throws XmlRpcException {
+		if ("login".equals(name)) {
+			return "token";
+		} else if ("logout".equals(name)) {
+			return Boolean.TRUE;
+		} else if ("getPage".equals(name)) {
+			return getPage((String) params[1]);
+		} else if ("getPages".equals(name)) {
+			final List<Object> result = new ArrayList<Object>();
+			for (Map<String, Object> page : pages.values()) {
+				if (params[1].equals(page.get("space"))) {
+					final Map<String, Object> summary = new HashMap<String, Object>();
+					summary.put("id", page.get("id"));
+					summary.put("space", page.get("space"));
+					summary.put("title", page.get("title"));
+					result.add(summary);
+				}
+			}
+			return result.toArray();
+		} else if ("storePage".equals(name)) {
+			final Map<String, Object> page = copy(params[1]);
+			if (page.get("id") == null) {
+				page.put("id", page.get("space") + "." + page.get("title"));
+			}
+			pages.put((String) page.get("id"), page);
+			return page;
+		} else if ("addAttachment".equals(name)) {
+			final Map<String, Object> attachment = copy(params[2]);
+			getPage((String) attachment.get("pageId"));
+			attachment.put("fileSize", Integer.toString(((byte[]) params[3]).length));
+			return attachment;
+		} else if ("addComment".equals(name)) {
+			final Map<String, Object> comment = copy(params[1]);
+			final String pageId = (String) comment.get("pageId");
+			getPage(pageId);
+			comment.put("id", Long.toString(getCalls(name)));
+			List<Map<String, Object>> page = comments.get(pageId);
+			if (page == null) {
+				comments.putIfAbsent(pageId, Collections.synchronizedList(new ArrayList<Map<String, Object>>()));
+				page = comments.get(pageId);
+			}
+			page.add(comment);
+			return comment;
+		} else if ("getComments".equals(name)) {
+			getPage((String) params[1]);
+			final List<Map<String, Object>> page = comments.get(params[1]);
+			return page != null ? page.toArray() : new Object[0];
+		} else if ("getObject".equals(name)) {
+			final Map<String, Object> object = objects.get(params[1] + "#" + params[2] + "#" + params[3]);
+			if (object == null) {
+				throw new XmlRpcException(0, "no object " + params[2] + "[" + params[3] + "] on page " + params[1]);
+			}
+			return object;
+		} else if ("storeObject".equals(name)) {
+			final Map<String, Object> object = copy(params[1]);
+			final String prefix = object.get("pageId") + "#" + object.get("className") + "#";
+			getPage((String) object.get("pageId"));
+			if (!(object.get("id") instanceof Integer) || ((Integer) object.get("id")).intValue() < 0) {
+				int id = 0;
+				while (objects.containsKey(prefix + id)) {
+					id++;
+				}
+				object.put("id", Integer.valueOf(id));
+			}
+			objects.put(prefix + object.get("id"), object);
+			return object;
+		}
+		throw new XmlRpcException(0, "No such handler: " + HANDLER + name);
+	}
+
+	private Map<String, Object> getPage(String pageId) throws XmlRpcException {
+		final Map<String, Object> page = pages.get(pageId);
+		if (page == null) {
+			throw new XmlRpcException(0, "page " + pageId + " does not exist");
+		}
+		return page;
+	}
+
+	private void count(String method) {
+		AtomicLong count = calls.get(method);
+		if (count == null) {
+			calls.putIfAbsent(method, new AtomicLong());
+			count = calls.get(method);
+		}
+		count.incrementAndGet();
+	}
+
+	private static Map<String, Object> copy(Object struct) {
+		final Map<String, Object> result = new HashMap<String, Object>();
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) struct).entrySet()) {
+			result.put(String.valueOf(entry.getKey()), entry.getValue());
+		}
+		return result;
+	}
+
+	private static void sleep(long millis) throws InterruptedException {
+		if (millis > 0) {
+			Thread.sleep(millis);
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		final byte[] buffer = new byte[8192];
+		int read = -1;
+		while ((read = in.read(buffer)) > 0) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param body the methodCall document
+	 * @param params receives the parameters
+	 * @return the method name
+	 * @throws XMLStreamException
+	 */
+	private String parseCall(byte[] body, List<Object> params) throws XMLStreamException {
+		final XMLStreamReader reader = inputfactory.createXMLStreamReader(new ByteArrayInputStream(body));
+		String method = null;
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+					if ("methodName".equals(reader.getLocalName())) {
+						method = reader.getElementText().trim();
+					} else if ("value".equals(reader.getLocalName())) {
+						params.add(readValue(reader));
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return method;
+	}
+
+	/**
+	 * @param reader positioned at &lt;value&gt;, afterwards at &lt;/value&gt;
+	 * @return the value
+	 * @throws XMLStreamException
+	 */
+	private static Object readValue(XMLStreamReader reader) throws XMLStreamException {
+		final StringBuilder text = new StringBuilder();
+		int event = reader.next();
+		while (event != XMLStreamConstants.START_ELEMENT && event != XMLStreamConstants.END_ELEMENT) {
+			if (reader.hasText()) {
+				text.append(reader.getText());
+			}
+			event = reader.next();
+		}
+		if (event == XMLStreamConstants.END_ELEMENT) {
+			// a string without type
+			return text.toString();
+		}
+		final String type = reader.getLocalName();
+		Object result;
+		if ("struct".equals(type)) {
+			final Map<String, Object> struct = new HashMap<String, Object>();
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				reader.nextTag();
+				final String name = reader.getElementText();
+				reader.nextTag();
+				struct.put(name, readValue(reader));
+				reader.nextTag();
+			}
+			result = struct;
+		} else if ("array".equals(type)) {
+			final List<Object> array = new ArrayList<Object>();
+			reader.nextTag();
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				array.add(readValue(reader));
+			}
+			reader.nextTag();
+			result = array.toArray();
+		} else {
+			final String value = reader.getElementText();
+			if ("i4".equals(type) || "int".equals(type)) {
+				result = Integer.valueOf(value.trim());
+			} else if ("i8".equals(type)) {
+				result = Long.valueOf(value.trim());
+			} else if ("boolean".equals(type)) {
+				result = Boolean.valueOf("1".equals(value.trim()));
+			} else if ("double".equals(type)) {
+				result = Double.valueOf(value.trim());
+			} else if ("base64".equals(type)) {
+				result = Base64.getMimeDecoder().decode(value);
+			} else if ("dateTime.iso8601".equals(type)) {
+				try {
+					result = new SimpleDateFormat(DATE_FORMAT).parse(value.trim());
+				} catch (ParseException e) {
+					throw new XMLStreamException("invalid date " + value, e);
+				}
+			} else if ("nil".equals(type)) {
+				result = null;
+			} else {
+				result = value;
+			}
+		}
+		reader.nextTag();
+		return result;
+	}
+
+	/**
+	 * @param result
+	 * @param fault null, if the call succeeded
+	 * @return the methodResponse document
+	 * @throws XMLStreamException
+	 */
+	private byte[] writeResponse(Object result, XmlRpcException fault) throws XMLStreamException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		final XMLStreamWriter writer = outputfactory.createXMLStreamWriter(out, "UTF-8");
+		writer.writeStartDocument("UTF-8", "1.0");
+		writer.writeStartElement("methodResponse");
+		if (fault == null) {
+			writer.writeStartElement("params");
+			writer.writeStartElement("param");
+			writeValue(writer, result);
+			writer.writeEndElement();
+			writer.writeEndElement();
+		} else {
+			final Map<String, Object> struct = new HashMap<String, Object>();
+			struct.put("faultCode", Integer.valueOf(fault.code));
+			struct.put("faultString", String.valueOf(fault.getMessage()));
+			writer.writeStartElement("fault");
+			writeValue(writer, struct);
+			writer.writeEndElement();
+		}
+		writer.writeEndElement();
+		writer.writeEndDocument();
+		writer.close();
+		return out.toByteArray();
+	}
+
+	private static void writeValue(XMLStreamWriter writer, Object value) throws XMLStreamException {
+		writer.writeStartElement("value");
+		if (value instanceof Map) {
+			writer.writeStartElement("struct");
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				writer.writeStartElement("member");
+				writer.writeStartElement("name");
+				writer.writeCharacters(String.valueOf(entry.getKey()));
+				writer.writeEndElement();
+				writeValue(writer, entry.getValue());
+				writer.writeEndElement();
+			}
+			writer.writeEndElement();
+		} else if (value instanceof Object[] || value instanceof Collection) {
+			writer.writeStartElement("array");
+			writer.writeStartElement("data");
+			for (Object item : value instanceof Collection ? ((Collection<?>) value).toArray() : (Object[]) value) {
+				writeValue(writer, item);
+			}
+			writer.writeEndElement();
+			writer.writeEndElement();
+		} else if (value instanceof Integer) {
+			writeTyped(writer, "i4", value.toString());
+		} else if (value instanceof Boolean) {
+			writeTyped(writer, "boolean", ((Boolean) value).booleanValue() ? "1" : "0");
+		} else if (value instanceof Double) {
+			writeTyped(writer, "double", value.toString());
+		} else if (value instanceof byte[]) {
+			writeTyped(writer, "base64", Base64.getEncoder().encodeToString((byte[]) value));
+		} else if (value instanceof Date) {
+			writeTyped(writer, "dateTime.iso8601", new SimpleDateFormat(DATE_FORMAT).format((Date) value));
+		} else {
+			writeTyped(writer, "string", value != null ? value.toString() : "");
+		}
+		writer.writeEndElement();
+	}
+
+	private static void writeTyped(XMLStreamWriter writer, String type, String value) throws XMLStreamException {
+		writer.writeStartElement(type);
+		writer.writeCharacters(value);
+		writer.writeEndElement();
+	}
+
+	/**
+	 * A failure of {@link #setFailureRate(double)}
+	 */
+	private static class InjectedFault extends XmlRpcException {
+		private static final long serialVersionUID = 1L;
+
+		InjectedFault(String name) {
+			super(500, "injected failure of " + name);
+		}
+	}
+
+	/**
+	 * The multicall was applied, but the client gets no result
+	 */
+	private static class LostResponse extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+}
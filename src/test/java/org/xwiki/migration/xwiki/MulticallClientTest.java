@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.xmlrpc.XmlRpcException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the {@link MulticallClient} against {@link MockXWikiServer}s
+ * with and without system.multicall.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class MulticallClientTest {
+
+	private MockXWikiServer plain;
+	private MockXWikiServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		plain = new MockXWikiServer(0);
+		plain.setMulticall(false);
+		plain.start();
+		server = new MockXWikiServer(0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		plain.close();
+		server.close();
+	}
+
+	private static List<MulticallClient.Call> calls() {
+		return Arrays.asList(new MulticallClient.Call("getPages", "Main"), new MulticallClient.Call("getPages", "Test"));
+	}
+
+	@Test
+	public void testMulticall() throws Exception {
+		final List<MulticallClient.Call> calls = calls();
+		new MulticallClient(server.getUrl()).execute(calls);
+		assertEquals(1, server.getRequests());
+		for (MulticallClient.Call call : calls) {
+			assertEquals(0, ((Object[]) call.getResult()).length);
+		}
+	}
+
+	@Test
+	public void testUnsupported() throws Exception {
+		final List<MulticallClient.Call> calls = calls();
+		new MulticallClient(plain.getUrl()).execute(calls);
+		// the multicall, then each call
+		assertEquals(3, plain.getRequests());
+		for (MulticallClient.Call call : calls) {
+			assertEquals(0, ((Object[]) call.getResult()).length);
+		}
+		new MulticallClient(plain.getUrl()).execute(calls());
+		assertEquals(5, plain.getRequests());
+		// another server still gets multicalls
+		new MulticallClient(server.getUrl()).execute(calls());
+		assertEquals(1, server.getRequests());
+	}
+
+	@Test
+	public void testMissingPage() throws Exception {
+		// a fault of a call is not an unknown method
+		final List<MulticallClient.Call> calls = Arrays.asList(new MulticallClient.Call("getPage", "Main.Missing"));
+		new MulticallClient(server.getUrl()).execute(calls);
+		new MulticallClient(server.getUrl()).execute(calls());
+		assertEquals(2, server.getRequests());
+		try {
+			calls.get(0).getResult();
+			fail("the page doesn't exist");
+		} catch (XmlRpcException e) {
+			assertTrue(e.getMessage().contains("does not exist"));
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xwiki.migration.mediawiki.Config;
+import org.xwiki.migration.mediawiki.MediaWikiConverter;
+
+/**
+ * Runs the {@link XWikiUploader} against a {@link MockXWikiServer}
+ * on localhost, with a small generated dump.
+ *
+ * As benchmark, {@link #main(String[])} converts the configured dump into
+ * a temporary folder, then the real uploader sends it with the configured
+ * upload settings (threads, batches, tags ...) to the mock server.
+ * Reports pages/s, bytes/s and the request latency seen by the server.
+ *
+ * Arguments, all optional: request latency (ms), call latency (ms), failure rate (0 .. 1)
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class UploadBenchmarkTest {
+
+	private static final Logger logger = Logger.getLogger(UploadBenchmarkTest.class.getName());
+
+	private static final int PAGES = 40;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private MockXWikiServer server;
+	private Properties overrides;
+
+	public static void main(String[] args) {
+		try {
+			run(args.length > 0 ? Long.parseLong(args[0]) : 0,
+					args.length > 1 ? Long.parseLong(args[1]) : 0,
+					args.length > 2 ? Double.parseDouble(args[2]) : 0);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @param requestlatency see {@link MockXWikiServer#setRequestLatency(long)}
+	 * @param calllatency see {@link MockXWikiServer#setCallLatency(long)}
+	 * @param failurerate see {@link MockXWikiServer#setFailureRate(double)}
+	 * @throws Exception
+	 */
+	public static void run(long requestlatency, long calllatency, double failurerate) throws Exception {
+		final File target = Files.createTempDirectory("upload-benchmark").toFile();
+		final MockXWikiServer server = new MockXWikiServer(0);
+		try {
+			server.start();
+			final Config cfg = new Config(settings(server, target));
+			logger.info("Converting " + cfg.getSourceDump() + " into " + target + " ...");
+			convert(cfg);
+
+			server.setRequestLatency(requestlatency);
+			server.setCallLatency(calllatency);
+			server.setFailureRate(failurerate);
+			final long started = System.nanoTime();
+			try {
+				upload(cfg);
+			} catch (Exception e) {
+				logger.warning("upload failed: " + e.getMessage());
+			}
+			report(server, (System.nanoTime() - started) / 1e9);
+		} finally {
+			server.close();
+			delete(target);
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		server = new MockXWikiServer(0);
+		server.start();
+		overrides = settings(server, folder.newFolder("target"));
+		overrides.put("source.dump.file", dump(folder.newFile("dump.xml"), PAGES).getPath());
+		overrides.put("upload.threads", "4");
+		overrides.put("upload.retry.delay", "1");
+	}
+
+	@After
+	public void tearDown() {
+		server.close();
+	}
+
+	@Test
+	public void testUpload() throws Exception {
+		final Config cfg = new Config(overrides);
+		convert(cfg);
+		upload(cfg);
+		// the pages and the WebHome of their space
+		assertEquals(PAGES + 1, server.getPages());
+		assertEquals(0, server.getFaults());
+		assertEquals(PAGES, server.getComments());
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		overrides.put("upload.batch.pages", "8");
+		final Config cfg = new Config(overrides);
+		convert(cfg);
+		upload(cfg);
+		assertEquals(PAGES + 1, server.getPages());
+		assertTrue(server.getRequests() < server.getCalls("storePage"));
+	}
+
+	@Test
+	public void testRetries() throws Exception {
+		convert(new Config(overrides));
+		server.setFailureRate(0.1);
+		// failing all attempts of a call gets unlikely
+		overrides.put("upload.retries", "10");
+		upload(new Config(overrides));
+		assertEquals(PAGES + 1, server.getPages());
+		assertTrue(server.getFaults() > 0);
+	}
+
+	@Test
+	public void testAppliedThenFailed() throws Exception {
+		convert(new Config(overrides));
+		server.setFailureRate(0.1);
+		server.setFailAfterApply(true);
+		overrides.put("upload.retries", "10");
+		upload(new Config(overrides));
+		assertEquals(PAGES + 1, server.getPages());
+		assertTrue(server.getFaults() > 0);
+		// neither a comment nor a tag object twice
+		assertEquals(PAGES, server.getComments());
+		assertEquals(PAGES, server.getObjects());
+	}
+
+	@Test
+	public void testBatchAppliedThenFailed() throws Exception {
+		overrides.put("upload.batch.pages", "8");
+		convert(new Config(overrides));
+		server.setFailureRate(0.05);
+		server.setFailAfterApply(true);
+		overrides.put("upload.retries", "10");
+		upload(new Config(overrides));
+		assertEquals(PAGES + 1, server.getPages());
+		assertTrue(server.getFaults() > 0);
+		assertEquals(PAGES, server.getComments());
+		assertEquals(PAGES, server.getObjects());
+	}
+
+	@Test
+	public void testTagGroups() throws Exception {
+		// more pages than one group of tags
+		overrides.put("source.dump.file", dump(folder.newFile("large.xml"), 250).getPath());
+		final Config cfg = new Config(overrides);
+		convert(cfg);
+		upload(cfg);
+		assertEquals(250 + 1, server.getPages());
+		assertEquals(250, server.getObjects());
+	}
+
+	@Test
+	public void testTagsAfterFailure() throws Exception {
+		final Config cfg = new Config(overrides);
+		convert(cfg);
+		server.setFailingTitle("Page " + (PAGES - 1));
+		try {
+			upload(cfg);
+			fail("the last page can't be stored");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		// the stored pages got their tags anyway
+		assertTrue(server.getPages() > 1);
+		assertEquals(server.getPages() - 1, server.getObjects());
+	}
+
+	@Test
+	public void testDirect() throws Exception {
+		overrides.put("upload.direct", "true");
+		upload(new Config(overrides));
+		assertEquals(PAGES + 1, server.getPages());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDirectConversionFails() throws Exception {
+		final File dump = new File(overrides.getProperty("source.dump.file"));
+		final Writer out = new OutputStreamWriter(new FileOutputStream(dump, true), "UTF-8");
+		out.write("<page><title>");
+		out.close();
+		overrides.put("upload.direct", "true");
+		upload(new Config(overrides));
+	}
+
+	/**
+	 * @param server
+	 * @param target
+	 * @return the settings to upload from target to the server
+	 */
+	private static Properties settings(MockXWikiServer server, File target) {
+		final Properties overrides = new Properties();
+		overrides.put("target.path", target.getPath());
+		overrides.put("target.format", "folder");
+		overrides.put("upload.direct", "false");
+		overrides.put("upload.transport", "xmlrpc");
+		overrides.put("xwiki.url", server.getUrl());
+		// the mock server has no REST API
+		overrides.put("upload.attachment.stream.size", "0");
+		return overrides;
+	}
+
+	/**
+	 * Writes the pages, each with a category.
+	 *
+	 * @param file
+	 * @param pages
+	 * @return the file
+	 * @throws IOException
+	 */
+	private static File dump(File file, int pages) throws IOException {
+		final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write("<mediawiki xmlns=\"http://www.mediawiki.org/xml/export-0.4/\" version=\"0.4\" xml:lang=\"de\">\n");
+			for (int i = 0; i < pages; i++) {
+				out.write("<page><title>Page " + i + "</title><id>" + (i + 1) + "</id><revision><id>" + (i + 1)
+						+ "</id><timestamp>2010-07-30T16:05:13Z</timestamp><contributor><username>Test</username>"
+						+ "<id>1</id></contributor><text xml:space=\"preserve\">Text of page " + i
+						+ "\n[[Category:Group " + (i % 3) + "]]</text></revision></page>\n");
+			}
+			out.write("</mediawiki>\n");
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static void convert(Config cfg) throws Exception {
+		final MediaWikiConverter converter = new MediaWikiConverter(cfg);
+		converter.setLogLevel(cfg.logLevel());
+		converter.convert(null);
+	}
+
+	private static void upload(Config cfg) throws Exception {
+		final XWikiUploader uploader = new XWikiUploader(cfg);
+		uploader.setLogLevel(cfg.logLevel());
+		uploader.run();
+	}
+
+	private static void report(MockXWikiServer server, double seconds) {
+		logger.info(String.format(Locale.ENGLISH,
+				"%d pages, %d attachments, %d comments, %d tag objects in %.2f s: %.1f pages/s, %.1f KB/s",
+				server.getCalls("storePage"), server.getCalls("addAttachment"), server.getCalls("addComment"),
+				server.getCalls("storeObject"), seconds, server.getCalls("storePage") / seconds,
+				server.getBytes() / 1024.0 / seconds));
+		logger.info(String.format(Locale.ENGLISH,
+				"%d requests (%.1f/s), at most %d at the same time, %d injected failures, latency p50/p90/p99 %d/%d/%d ms",
+				server.getRequests(), server.getRequests() / seconds, server.getMaxConcurrency(), server.getFaults(),
+				server.getLatency(50), server.getLatency(90), server.getLatency(99)));
+	}
+
+	private static void delete(File file) throws IOException {
+		final File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (!file.delete() && file.exists()) {
+			throw new IOException("can't delete " + file);
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010 mkirst(at portolancs dot com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xwiki.migration.xwiki;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.codehaus.swizzle.confluence.Page;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xwiki.migration.mediawiki.Config;
+
+/**
+ * Runs the {@link XmlRpcTransport} against a {@link MockXWikiServer}.
+ *
+ * @author mkirst(at portolancs dot com)
+ */
+public class XmlRpcTransportTest {
+
+	private MockXWikiServer server;
+	private XmlRpcTransport transport;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new MockXWikiServer(0);
+		server.start();
+		final Properties overrides = new Properties();
+		overrides.put("xwiki.url", server.getUrl());
+		overrides.put("upload.threads", "1");
+		transport = new XmlRpcTransport(new Config(overrides));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		transport.close();
+		server.close();
+	}
+
+	@Test
+	public void testExists() throws Exception {
+		assertFalse(transport.exists("Main.WebHome"));
+		final Page page = new Page();
+		page.setId("Main.WebHome");
+		page.setSpace("Main");
+		page.setTitle("WebHome");
+		page.setContent("");
+		transport.storePage(page);
+		assertTrue(transport.exists("Main.WebHome"));
+	}
+
+	@Test(expected = Exception.class)
+	public void testExistsFails() throws Exception {
+		// not a missing page, but no answer at all
+		server.close();
+		transport.exists("Main.WebHome");
+	}
+
+	@Test
+	public void testListPages() throws Exception {
+		assertTrue(transport.listPages("Main").isEmpty());
+	}
+
+	@Test(expected = Exception.class)
+	public void testListPagesFails() throws Exception {
+		// not an empty space, but no answer at all
+		server.close();
+		transport.listPages("Main");
+	}
+}